@@ -181,19 +181,70 @@ public class CoffSection {
 		byte[] memory = Machine.processor().getMemory();
 		int paddr = ppn * pageSize;
 		int faddr = contentOffset + spn * pageSize;
-		int initlen;
-
-		if (!initialized)
-			initlen = 0;
-		else if (spn == numPages - 1)
-			initlen = size % pageSize;
-		else
-			initlen = pageSize;
+		int initlen = getInitializedLength(spn);
 
 		if (initlen > 0)
 			Lib.strictReadFile(file, faddr, memory, paddr, initlen);
 
 		Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+
+		Machine.processor().flushDecodeCache(ppn);
+	}
+
+	/**
+	 * Load consecutive pages from this segment into physical memory, reading
+	 * them from the file in a single read. The physical pages need not be
+	 * consecutive.
+	 * 
+	 * @param spn the page number within this segment of the first page.
+	 * @param ppns the physical pages to load into, one for each page.
+	 */
+	public void loadPages(int spn, int[] ppns) {
+		Lib.assertTrue(file != null);
+
+		Lib.assertTrue(spn >= 0 && spn + ppns.length <= numPages);
+
+		int pageSize = Processor.pageSize;
+		byte[] memory = Machine.processor().getMemory();
+
+		// only the last page of a section can be partially initialized, so
+		// the initialized bytes of consecutive pages are contiguous
+		int initlen = 0;
+		for (int i = 0; i < ppns.length; i++)
+			initlen += getInitializedLength(spn + i);
+
+		byte[] buf = new byte[initlen];
+		if (initlen > 0)
+			Lib.strictReadFile(file, contentOffset + spn * pageSize, buf, 0,
+					initlen);
+
+		for (int i = 0; i < ppns.length; i++) {
+			Lib.assertTrue(ppns[i] >= 0
+					&& ppns[i] < Machine.processor().getNumPhysPages());
+
+			int paddr = ppns[i] * pageSize;
+			int pagelen = Math.max(0, Math.min(pageSize, initlen - i * pageSize));
+
+			System.arraycopy(buf, i * pageSize, memory, paddr, pagelen);
+			Arrays.fill(memory, paddr + pagelen, paddr + pageSize, (byte) 0);
+
+			Machine.processor().flushDecodeCache(ppns[i]);
+		}
+	}
+
+	/**
+	 * Return the number of bytes of the specified page that are read from the
+	 * file. The rest of the page is zero-filled.
+	 */
+	private int getInitializedLength(int spn) {
+		int pageSize = Processor.pageSize;
+
+		if (!initialized)
+			return 0;
+		else if (spn == numPages - 1)
+			return size % pageSize;
+		else
+			return pageSize;
 	}
 
 	/** The COFF object to which this section belongs. */
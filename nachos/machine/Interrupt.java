@@ -4,9 +4,10 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
 import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +53,13 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+	}
+
+	/**
+	 * Allocate a scratch interrupt controller for <tt>selfTest()</tt>. Only
+	 * its timing wheel may be used.
+	 */
+	private Interrupt() {
 	}
 
 	/**
@@ -123,12 +130,13 @@ public final class Interrupt {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+		PendingInterrupt toOccur = allocate(time, type, handler);
 
-		Lib.debug(dbgInt, "Scheduling the " + type
-				+ " interrupt handler at time = " + time);
+		if (Lib.test(dbgInt))
+			Lib.debug(dbgInt, "Scheduling the " + type
+					+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		insert(toOccur);
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -151,6 +159,60 @@ public final class Interrupt {
 		enabled = true;
 	}
 
+	/**
+	 * Advance the simulated time to the last kernel tick before the next
+	 * pending interrupt is due, as if the idle thread had spent that time
+	 * yielding. The tick that delivers the interrupt is left to the idle
+	 * thread, when it enables interrupts, so every handler runs at the same
+	 * time and in the same order as without skipping. Called with interrupts
+	 * disabled when no thread is ready to run.
+	 */
+	public void idle() {
+		Lib.assertTrue(disabled());
+
+		long count = ticksUntilDue(Stats.KernelTick);
+		if (count == 0 || count == Long.MAX_VALUE)
+			return;
+
+		Stats stats = privilege.stats;
+
+		stats.kernelTicks += count * Stats.KernelTick;
+		stats.totalTicks += count * Stats.KernelTick;
+
+		Lib.assertTrue(first().time > stats.totalTicks);
+	}
+
+	private long userTicksUntilDue() {
+		return ticksUntilDue(Stats.UserTick);
+	}
+
+	/**
+	 * Return the number of ticks of the specified length that can pass
+	 * without reaching the first pending interrupt.
+	 */
+	private long ticksUntilDue(long tick) {
+		// tracing needs to see every tick
+		if (Lib.test(dbgInt))
+			return 0;
+
+		if (numPending == 0)
+			return Long.MAX_VALUE;
+
+		long ticks = first().time - privilege.stats.totalTicks;
+
+		// the tick that reaches the first pending interrupt can't be skipped
+		return Math.max(0, (ticks - 1) / tick);
+	}
+
+	private void advanceUserTicks(long count) {
+		Stats stats = privilege.stats;
+
+		stats.userTicks += count * Stats.UserTick;
+		stats.totalTicks += count * Stats.UserTick;
+
+		Lib.assertTrue(numPending == 0 || first().time > stats.totalTicks);
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -159,29 +221,41 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
+		if (numPending == 0)
 			return;
 
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (first().time > time)
 			return;
 
-		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+		if (Lib.test(dbgInt))
+			Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		while (numPending > 0 && first().time <= time) {
+			PendingInterrupt next = removeFirst();
 
 			Lib.assertTrue(next.time <= time);
 
+			String type = next.type;
+			Runnable handler = next.handler;
+			free(next);
+
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			if (Lib.test(dbgInt))
+				Lib.debug(dbgInt, "  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
+		/*
+		 * Everything up to now has been delivered, so the wheel can move up.
+		 * A handler may have switched threads, letting another thread deliver
+		 * later interrupts first, so never move the wheel backwards.
+		 */
+		if (time > wheelTime)
+			advanceWheel(time);
+
 		Lib.debug(dbgInt, "  (end of list)");
 	}
 
@@ -190,8 +264,20 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
+		ArrayList<PendingInterrupt> all = new ArrayList<PendingInterrupt>();
+		for (int level = 0; level < wheelLevels; level++) {
+			for (int slot = 0; slot < wheelSize; slot++) {
+				PendingInterrupt i = slotHead[level][slot];
+				for (; i != null; i = i.next)
+					all.add(i);
+			}
+		}
+		for (PendingInterrupt i = overflow; i != null; i = i.next)
+			all.add(i);
+
+		Collections.sort(all);
+
+		for (PendingInterrupt toOccur : all) {
 			System.out.println("  " + toOccur.type + ", scheduled at "
 					+ toOccur.time);
 		}
@@ -199,17 +285,285 @@ public final class Interrupt {
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
+	/**
+	 * Return a pending interrupt object, reusing a free one if possible.
+	 */
+	private PendingInterrupt allocate(long time, String type, Runnable handler) {
+		PendingInterrupt toOccur = freeList;
+
+		if (toOccur == null) {
+			toOccur = new PendingInterrupt();
+		}
+		else {
+			freeList = toOccur.next;
+		}
+
+		toOccur.time = time;
+		toOccur.type = type;
+		toOccur.handler = handler;
+		toOccur.id = numPendingInterruptsCreated++;
+		toOccur.next = null;
+
+		return toOccur;
+	}
+
+	/**
+	 * Return a delivered interrupt object to the free list.
+	 */
+	private void free(PendingInterrupt toOccur) {
+		toOccur.type = null;
+		toOccur.handler = null;
+		toOccur.next = freeList;
+		freeList = toOccur;
+	}
+
+	/**
+	 * Add an interrupt to the timing wheel. The interrupt goes in the level
+	 * corresponding to the most significant byte in which its time differs
+	 * from <tt>wheelTime</tt>, in the slot given by that byte of its time.
+	 * Interrupts more than 2<sup>32</sup> ticks away go in the overflow list.
+	 */
+	private void insert(PendingInterrupt toOccur) {
+		Lib.assertTrue(toOccur.time >= wheelTime);
+
+		long diff = toOccur.time ^ wheelTime;
+
+		if ((diff >>> (wheelBits * wheelLevels)) != 0) {
+			toOccur.level = -1;
+			overflow = insertSorted(overflow, toOccur);
+		}
+		else {
+			int level = (diff == 0) ? 0
+					: (63 - Long.numberOfLeadingZeros(diff)) / wheelBits;
+			int slot = (int) (toOccur.time >>> (level * wheelBits))
+					& (wheelSize - 1);
+
+			toOccur.level = level;
+			toOccur.slot = slot;
+
+			PendingInterrupt tail = slotTail[level][slot];
+			if (tail == null) {
+				slotHead[level][slot] = toOccur;
+				slotTail[level][slot] = toOccur;
+				occupied[level][slot / 64] |= 1L << (slot % 64);
+			}
+			else if (tail.compareTo(toOccur) < 0) {
+				// usual case: same time as everything else here, later id
+				tail.next = toOccur;
+				slotTail[level][slot] = toOccur;
+			}
+			else {
+				slotHead[level][slot] = insertSorted(slotHead[level][slot],
+						toOccur);
+			}
+		}
+
+		numPending++;
+
+		if (earliest != null && toOccur.compareTo(earliest) < 0)
+			earliest = toOccur;
+	}
+
+	/**
+	 * Insert an interrupt into a sorted list, and return the new head.
+	 */
+	private PendingInterrupt insertSorted(PendingInterrupt head,
+			PendingInterrupt toOccur) {
+		if (head == null || toOccur.compareTo(head) < 0) {
+			toOccur.next = head;
+			return toOccur;
+		}
+
+		PendingInterrupt prev = head;
+		while (prev.next != null && prev.next.compareTo(toOccur) < 0)
+			prev = prev.next;
+
+		toOccur.next = prev.next;
+		prev.next = toOccur;
+
+		return head;
+	}
+
+	/**
+	 * Return the pending interrupt that will occur first. Every interrupt in a
+	 * lower level occurs before every interrupt in a higher level, and within
+	 * a level lower slots come first, so this is the head of the lowest
+	 * occupied slot of the lowest occupied level.
+	 */
+	private PendingInterrupt first() {
+		Lib.assertTrue(numPending > 0);
+
+		if (earliest != null)
+			return earliest;
+
+		for (int level = 0; level < wheelLevels; level++) {
+			long[] bits = occupied[level];
+			for (int word = 0; word < bits.length; word++) {
+				if (bits[word] != 0) {
+					int slot = word * 64
+							+ Long.numberOfTrailingZeros(bits[word]);
+					earliest = slotHead[level][slot];
+					return earliest;
+				}
+			}
+		}
+
+		earliest = overflow;
+		return earliest;
+	}
+
+	/**
+	 * Remove and return the pending interrupt that will occur first.
+	 */
+	private PendingInterrupt removeFirst() {
+		PendingInterrupt toOccur = first();
+
+		if (toOccur.level < 0) {
+			overflow = toOccur.next;
+		}
+		else {
+			int level = toOccur.level, slot = toOccur.slot;
+
+			slotHead[level][slot] = toOccur.next;
+			if (toOccur.next == null) {
+				slotTail[level][slot] = null;
+				occupied[level][slot / 64] &= ~(1L << (slot % 64));
+			}
+		}
+
+		toOccur.next = null;
+		numPending--;
+		earliest = null;
+
+		return toOccur;
+	}
+
+	/**
+	 * Move the wheel forward to the specified time, which must not be later
+	 * than any pending interrupt. Only the interrupts in the slot that
+	 * <tt>time</tt> falls in at each level need to move down a level.
+	 */
+	private void advanceWheel(long time) {
+		Lib.assertTrue(time >= wheelTime);
+		Lib.assertTrue(numPending == 0 || first().time > time);
+
+		int wheelSpan = wheelBits * wheelLevels;
+		boolean overflowMoved =
+				(time >>> wheelSpan) != (wheelTime >>> wheelSpan);
+
+		wheelTime = time;
+
+		if (overflowMoved) {
+			while (overflow != null
+					&& (overflow.time >>> wheelSpan) == (time >>> wheelSpan)) {
+				PendingInterrupt toOccur = overflow;
+				overflow = toOccur.next;
+				toOccur.next = null;
+
+				numPending--;
+				insert(toOccur);
+			}
 		}
 
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
+		for (int level = wheelLevels - 1; level > 0; level--) {
+			int slot = (int) (time >>> (level * wheelBits)) & (wheelSize - 1);
+
+			PendingInterrupt toOccur = slotHead[level][slot];
+			if (toOccur == null)
+				continue;
+
+			slotHead[level][slot] = null;
+			slotTail[level][slot] = null;
+			occupied[level][slot / 64] &= ~(1L << (slot % 64));
 
+			while (toOccur != null) {
+				PendingInterrupt next = toOccur.next;
+				toOccur.next = null;
+
+				numPending--;
+				insert(toOccur);
+
+				toOccur = next;
+			}
+		}
+	}
+
+	/**
+	 * Test the timing wheel of a scratch interrupt controller against a sorted
+	 * set of the same interrupts. Interrupts are added at random times, in
+	 * every level of the wheel and in the overflow list, with many due at the
+	 * same time, while the wheel moves forward in random steps. They must
+	 * come out in order of time, and in the order they were added within the
+	 * same time.
+	 */
+	public static void selfTest() {
+		Interrupt wheel = new Interrupt();
+		TreeSet<PendingInterrupt> expected = new TreeSet<PendingInterrupt>();
+		Random random = new Random(0);
+		long now = 0, lastTime = 1;
+
+		for (int round = 0; round < 2000; round++) {
+			for (int i = random.nextInt(20); i > 0; i--) {
+				long time;
+				switch (random.nextInt(6)) {
+				case 0:
+					time = lastTime;
+					break;
+				case 1:
+					time = now + 1 + random.nextInt(1 << wheelBits);
+					break;
+				case 2:
+					time = now + 1 + random.nextInt(1 << (wheelBits * 2));
+					break;
+				case 3:
+					time = now + 1 + (random.nextLong() & 0xFFFFFFFFL);
+					break;
+				case 4:
+					time = now + 1 + (random.nextLong() & 0xFFFFFFFFFFL);
+					break;
+				default:
+					time = now + 1 + random.nextInt(1000);
+					break;
+				}
+				lastTime = Math.max(time, now + 1);
+
+				PendingInterrupt toOccur = wheel.allocate(lastTime, "test",
+						null);
+				wheel.insert(toOccur);
+				expected.add(toOccur);
+			}
+
+			// sometimes jump straight to the first interrupt
+			long target;
+			if (expected.isEmpty() || random.nextInt(4) != 0)
+				target = now + random.nextInt(1 << (wheelBits * 2));
+			else
+				target = expected.first().time;
+
+			while (!expected.isEmpty() && expected.first().time <= target) {
+				Lib.assertTrue(wheel.first() == expected.first());
+
+				PendingInterrupt toOccur = wheel.removeFirst();
+				Lib.assertTrue(toOccur == expected.pollFirst());
+				wheel.free(toOccur);
+			}
+			Lib.assertTrue(wheel.numPending == expected.size());
+
+			now = target;
+			if (now > wheel.wheelTime)
+				wheel.advanceWheel(now);
+		}
+
+		while (!expected.isEmpty()) {
+			PendingInterrupt toOccur = wheel.removeFirst();
+			Lib.assertTrue(toOccur == expected.pollFirst());
+			wheel.free(toOccur);
+		}
+		Lib.assertTrue(wheel.numPending == 0);
+	}
+
+	private class PendingInterrupt implements Comparable<PendingInterrupt> {
+		public int compareTo(PendingInterrupt toOccur) {
 			// can't return 0 for unequal objects, so check all fields
 			if (time < toOccur.time)
 				return -1;
@@ -230,6 +584,14 @@ public final class Interrupt {
 		Runnable handler;
 
 		private long id;
+
+		/** The next interrupt in the same slot, or in the free list. */
+		PendingInterrupt next;
+
+		/** The wheel level holding this interrupt, or -1 for overflow. */
+		int level;
+
+		int slot;
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -238,7 +600,39 @@ public final class Interrupt {
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	/** Number of bits of the time used to index each wheel level. */
+	private static final int wheelBits = 8;
+
+	private static final int wheelSize = 1 << wheelBits;
+
+	private static final int wheelLevels = 4;
+
+	/**
+	 * The timing wheel. Each slot holds a list of interrupts sorted by time
+	 * and then by creation order.
+	 */
+	private PendingInterrupt[][] slotHead =
+			new PendingInterrupt[wheelLevels][wheelSize];
+
+	private PendingInterrupt[][] slotTail =
+			new PendingInterrupt[wheelLevels][wheelSize];
+
+	/** One bit per slot, set if the slot is not empty. */
+	private long[][] occupied = new long[wheelLevels][wheelSize / 64];
+
+	/** The time that the wheel is positioned at. */
+	private long wheelTime = 0;
+
+	/** Sorted list of interrupts too far in the future for the wheel. */
+	private PendingInterrupt overflow = null;
+
+	/** The first pending interrupt, or <tt>null</tt> if not yet known. */
+	private PendingInterrupt earliest = null;
+
+	private int numPending = 0;
+
+	/** Delivered interrupt objects, kept for reuse. */
+	private PendingInterrupt freeList = null;
 
 	private static final char dbgInt = 'i';
 
@@ -250,5 +644,13 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public long userTicksUntilDue() {
+			return Interrupt.this.userTicksUntilDue();
+		}
+
+		public void advanceUserTicks(long count) {
+			Interrupt.this.advanceUserTicks(count);
+		}
 	}
 }
@@ -378,6 +378,16 @@ public final class Machine {
 		return autoGrader;
 	}
 
+	/**
+	 * Return the runtime statistics, so that the kernel can count events the
+	 * hardware does not see, such as swap I/O.
+	 * 
+	 * @return the runtime statistics.
+	 */
+	public static Stats stats() {
+		return stats;
+	}
+
 	private static Interrupt interrupt = null;
 
 	private static Timer timer = null;
@@ -4,6 +4,12 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -40,14 +46,48 @@ public final class Processor {
 		// let config file value override
 		usingTLB = Config.getBoolean ("Processor.usingTLB", usingTLB);
 
+		String engine = Config.getString("Processor.engine", "interpreter");
+		if (engine.equals("block") || engine.equals("check")) {
+			usingBlocks = true;
+			checkingBlocks = engine.equals("check");
+		}
+		else {
+			Lib.assertTrue(engine.equals("interpreter"),
+					"Processor.engine must be interpreter, block or check");
+		}
+
 		this.numPhysPages = numPhysPages;
 
+		traceProcessor = Lib.test(dbgProcessor);
+		traceDisassemble = Lib.test(dbgDisassemble);
+		traceFullDisassemble = Lib.test(dbgFullDisassemble);
+
+		cachedVPN = new int[translationCacheSize];
+		cachedEntry = new TranslationEntry[translationCacheSize];
+		cachedPPN = new int[translationCacheSize];
+		flushTranslationCache();
+
 		for (int i = 0; i < numUserRegisters; i++)
 			registers[i] = 0;
 
 		mainMemory = new byte[pageSize * numPhysPages];
+		decodeCache = new Decoded[numPhysPages][];
+		blockCache = new Block[numPhysPages][];
+		pageStores = new int[numPhysPages];
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+			tlbAssociativity = Config.getInteger("Processor.tlbAssociativity",
+					tlbSize);
+			Lib.assertTrue(tlbSize > 0 && tlbAssociativity > 0
+					&& tlbSize % tlbAssociativity == 0,
+					"TLB size must be a multiple of its associativity");
+			numTLBSets = tlbSize / tlbAssociativity;
+
+			privilege.stats.tlbSetHits = new long[numTLBSets];
+			privilege.stats.tlbSetMisses = new long[numTLBSets];
+			privilege.stats.tlbSetEvictions = new long[numTLBSets];
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
@@ -83,6 +123,16 @@ public final class Processor {
 
 	/**
 	 * Start executing instructions at the current PC. Never returns.
+	 * 
+	 * <p>
+	 * If <tt>Processor.engine</tt> is <tt>block</tt>, straight-line code is
+	 * executed a basic block at a time. Either way, every instruction takes
+	 * exactly one tick and has exactly the same effect, including on the TLB
+	 * used bits and hit counts, even though a block translates the PC only
+	 * once. If it is
+	 * <tt>check</tt>, basic blocks are used, but every instruction in a block
+	 * is also run through the interpreter and the results are compared (see
+	 * <tt>checkOp()</tt>).
 	 */
 	public void run() {
 		Lib.debug(dbgProcessor, "starting program in current thread");
@@ -93,7 +143,19 @@ public final class Processor {
 
 		Instruction inst = new Instruction();
 
+		quietTicks = 0;
+
+		// the block engine does not trace, so fall back when debugging
+		boolean blocks = usingBlocks && !traceProcessor && !traceDisassemble
+				&& !traceFullDisassemble;
+
 		while (true) {
+			// a block can only start on a straight-line instruction
+			if (blocks && registers[regNextPC] == registers[regPC] + 4) {
+				runBlock();
+				continue;
+			}
+
 			try {
 				inst.run();
 			}
@@ -101,8 +163,482 @@ public final class Processor {
 				e.handle();
 			}
 
-			privilege.interrupt.tick(false);
+			tick();
+		}
+	}
+
+	/**
+	 * Account for the tick taken by one instruction. Ticks that cannot cause
+	 * an interrupt are only counted here, and are added to the simulated time
+	 * in one step by <tt>syncTicks()</tt>; the interrupt controller is only
+	 * entered on the tick at which an interrupt is due.
+	 */
+	private void tick() {
+		if (quietTicks > 0) {
+			quietTicks--;
+			unsyncedTicks++;
+			return;
+		}
+
+		syncTicks();
+		privilege.interrupt.tick(false);
+
+		// this may be a different thread than the one that called tick()
+		quietTicks = privilege.interrupt.userTicksUntilDue();
+	}
+
+	/**
+	 * Add any ticks counted by <tt>tick()</tt> to the simulated time. Must be
+	 * called before any kernel code runs, so that the kernel sees the correct
+	 * time.
+	 */
+	private void syncTicks() {
+		if (unsyncedTicks > 0) {
+			privilege.interrupt.advanceUserTicks(unsyncedTicks);
+			unsyncedTicks = 0;
+		}
+	}
+
+	/**
+	 * Execute the basic block starting at the current PC, one instruction and
+	 * one tick at a time. The block is abandoned as soon as anything happens
+	 * that the block could not have anticipated: an exception, an interrupt
+	 * handler running (which may have switched threads or changed the page
+	 * table), or a store into the block's own page.
+	 * 
+	 * <p>
+	 * The PC is only translated for the first instruction. Nothing can change
+	 * the TLB while the block runs, so each later fetch would have hit the
+	 * same entry, whose used bit is already set; only the hit is counted.
+	 */
+	private void runBlock() {
+		Block block;
+		int fetchSet = -1;
+
+		try {
+			int paddr = translate(registers[regPC], 4, false);
+			block = lookupBlock(paddr);
+
+			if (usingTLB)
+				fetchSet = pageFromAddress(registers[regPC]) % numTLBSets;
+		}
+		catch (MipsException e) {
+			e.handle();
+			tick();
+			return;
+		}
+
+		BlockOp[] ops = block.ops;
+		int generation = pipeGeneration;
+		lastStorePPN = -1;
+
+		for (int i = 0; i < ops.length; i++) {
+			if (i > 0 && fetchSet != -1)
+				privilege.stats.tlbSetHits[fetchSet]++;
+
+			try {
+				if (checkingBlocks)
+					checkOp(ops[i]);
+				else
+					ops[i].run();
+			}
+			catch (MipsException e) {
+				e.handle();
+				tick();
+				return;
+			}
+
+			tick();
+
+			if (pipeGeneration != generation)
+				return;
+
+			if (lastStorePPN == block.ppn)
+				return;
+		}
+	}
+
+	/**
+	 * Run one operation of a basic block, then undo it and run the same
+	 * instruction through the interpreter, decoded afresh and with no cached
+	 * translations. Assert that both had the same effect on the registers,
+	 * the delayed load and memory, or raised the same exception. The
+	 * statistics are left as the block operation left them, so a run in this
+	 * mode reports the same statistics as one using blocks alone.
+	 * 
+	 * @param op the operation to check.
+	 * @exception MipsException if the instruction raised an exception.
+	 */
+	private void checkOp(BlockOp op) throws MipsException {
+		int pc = registers[regPC];
+		int[] savedRegisters = registers.clone();
+		int savedTarget = loadTarget, savedValue = loadValue;
+		int savedMask = loadMask;
+
+		storeAddress = -1;
+		MipsException blockException = null;
+		try {
+			op.run();
+		}
+		catch (MipsException e) {
+			blockException = e;
+		}
+
+		int[] blockRegisters = registers.clone();
+		int blockTarget = loadTarget, blockValue = loadValue;
+		int blockMask = loadMask;
+		int blockStoreAddress = storeAddress, blockStoreSize = storeSize;
+		int blockStoreValue = 0;
+		if (blockStoreAddress != -1) {
+			blockStoreValue = readPhysical(blockStoreAddress, storeSize);
+			writePhysical(blockStoreAddress, storeSize, storeOldValue);
+		}
+
+		Stats stats = privilege.stats;
+		int pageFaults = stats.numPageFaults, tlbMisses = stats.numTLBMisses;
+		long[] setHits = null, setMisses = null;
+		if (usingTLB) {
+			setHits = stats.tlbSetHits.clone();
+			setMisses = stats.tlbSetMisses.clone();
+		}
+
+		System.arraycopy(savedRegisters, 0, registers, 0, registers.length);
+		loadTarget = savedTarget;
+		loadValue = savedValue;
+		loadMask = savedMask;
+
+		storeAddress = -1;
+		flushTranslationCache();
+		MipsException interpreterException = null;
+		try {
+			int paddr = translate(pc, 4, false);
+			checkInstruction.run(new Decoded((int) intView.get(mainMemory,
+					paddr)));
+		}
+		catch (MipsException e) {
+			interpreterException = e;
+		}
+
+		stats.numPageFaults = pageFaults;
+		stats.numTLBMisses = tlbMisses;
+		if (usingTLB) {
+			System.arraycopy(setHits, 0, stats.tlbSetHits, 0, setHits.length);
+			System.arraycopy(setMisses, 0, stats.tlbSetMisses, 0,
+					setMisses.length);
+		}
+
+		String message = "Processor.engine = check: block and interpreter "
+				+ "differ at PC=0x" + Lib.toHexString(pc);
+
+		if (blockException != null || interpreterException != null) {
+			Lib.assertTrue(blockException != null
+					&& interpreterException != null
+					&& blockException.cause == interpreterException.cause
+					&& blockException.badVAddr == interpreterException.badVAddr,
+					message);
+		}
+
+		Lib.assertTrue(Arrays.equals(registers, blockRegisters)
+				&& loadTarget == blockTarget && loadValue == blockValue
+				&& loadMask == blockMask, message);
+
+		Lib.assertTrue(storeAddress == blockStoreAddress, message);
+		if (storeAddress != -1) {
+			Lib.assertTrue(storeSize == blockStoreSize
+					&& readPhysical(storeAddress, storeSize) == blockStoreValue,
+					message);
+		}
+
+		if (interpreterException != null)
+			throw interpreterException;
+	}
+
+	/**
+	 * Return the basic block starting at the specified physical address,
+	 * building it if necessary. A cached block is only reused if the memory
+	 * it was built from is unchanged.
+	 * 
+	 * <p>
+	 * Memory is only compared when it might have changed since the block was
+	 * last checked: a user store to the page, or any kernel code running,
+	 * since the kernel writes memory directly. The kernel only runs from an
+	 * exception or interrupt handler, both of which change
+	 * <tt>pipeGeneration</tt>.
+	 * 
+	 * @param paddr the physical address of the first instruction.
+	 * @return the basic block.
+	 */
+	private Block lookupBlock(int paddr) {
+		int ppn = paddr / pageSize;
+
+		Block[] page = blockCache[ppn];
+		if (page == null) {
+			page = new Block[pageSize / 4];
+			blockCache[ppn] = page;
+		}
+
+		int index = (paddr % pageSize) / 4;
+
+		Block block = page[index];
+		if (block != null) {
+			if (block.generation == pipeGeneration
+					&& block.stores == pageStores[ppn]) {
+				if (checkingBlocks)
+					Lib.assertTrue(block.matches(), "Processor.engine = check: "
+							+ "stale block at 0x" + Lib.toHexString(paddr));
+
+				return block;
+			}
+
+			if (block.matches()) {
+				block.generation = pipeGeneration;
+				block.stores = pageStores[ppn];
+				return block;
+			}
+		}
+
+		block = buildBlock(paddr);
+		block.generation = pipeGeneration;
+		block.stores = pageStores[ppn];
+		page[index] = block;
+
+		return block;
+	}
+
+	/**
+	 * Decode a basic block starting at the specified physical address. The
+	 * block ends after the delay slot of the first branch or jump, after the
+	 * first instruction that always raises an exception, or at the end of
+	 * the page, whichever comes first.
+	 * 
+	 * @param paddr the physical address of the first instruction.
+	 * @return the new basic block.
+	 */
+	private Block buildBlock(int paddr) {
+		int pageEnd = (paddr / pageSize + 1) * pageSize;
+
+		ArrayList<Decoded> decoded = new ArrayList<Decoded>();
+		boolean delaySlot = false;
+
+		for (int addr = paddr; addr < pageEnd; addr += 4) {
+			Decoded d = lookupDecoded(addr, (int) intView.get(mainMemory, addr));
+			decoded.add(d);
+
+			if (delaySlot)
+				break;
+
+			if (Lib.test(Mips.BRANCH, d.flags))
+				delaySlot = true;
+			else if (d.operation == Mips.SYSCALL
+					|| d.operation == Mips.UNIMPL
+					|| d.operation == Mips.INVALID)
+				break;
+		}
+
+		Block block = new Block(paddr, decoded.size());
+		for (int i = 0; i < block.ops.length; i++) {
+			Decoded d = decoded.get(i);
+			block.values[i] = d.value;
+			block.ops[i] = compile(d);
+		}
+
+		return block;
+	}
+
+	/**
+	 * Translate a decoded instruction into a single operation with the same
+	 * effect as running it through <tt>Instruction</tt>: read the sources,
+	 * execute, complete or schedule the delayed load, write the destination,
+	 * and advance the PC. Less common instructions simply reuse the
+	 * interpreter.
+	 * 
+	 * @param d the decoded instruction.
+	 * @return the operation.
+	 */
+	private BlockOp compile(final Decoded d) {
+		final int rs = d.rs, rt = d.rt, imm = d.imm, sh = d.sh;
+		final int dstReg = d.dstReg;
+		final boolean src2imm = Lib.test(Mips.SRC2IMM, d.flags);
+		final boolean unsigned = Lib.test(Mips.UNSIGNED, d.flags);
+
+		switch (d.operation) {
+		case Mips.ADD:
+			if (Lib.test(Mips.OVERFLOW, d.flags)) {
+				return () -> {
+					long dst = (long) registers[rs]
+							+ (src2imm ? imm : registers[rt]);
+					if (Lib.test(dst, 31) != Lib.test(dst, 32))
+						throw new MipsException(exceptionOverflow);
+					finishOp(dstReg, (int) dst);
+				};
+			}
+			if (src2imm)
+				return () -> finishOp(dstReg, registers[rs] + imm);
+			return () -> finishOp(dstReg, registers[rs] + registers[rt]);
+
+		case Mips.SUB:
+			if (Lib.test(Mips.OVERFLOW, d.flags)) {
+				return () -> {
+					long dst = (long) registers[rs] - registers[rt];
+					if (Lib.test(dst, 31) != Lib.test(dst, 32))
+						throw new MipsException(exceptionOverflow);
+					finishOp(dstReg, (int) dst);
+				};
+			}
+			return () -> finishOp(dstReg, registers[rs] - registers[rt]);
+
+		case Mips.AND:
+			if (src2imm)
+				return () -> finishOp(dstReg, registers[rs] & imm);
+			return () -> finishOp(dstReg, registers[rs] & registers[rt]);
+		case Mips.OR:
+			if (src2imm)
+				return () -> finishOp(dstReg, registers[rs] | imm);
+			return () -> finishOp(dstReg, registers[rs] | registers[rt]);
+		case Mips.XOR:
+			if (src2imm)
+				return () -> finishOp(dstReg, registers[rs] ^ imm);
+			return () -> finishOp(dstReg, registers[rs] ^ registers[rt]);
+		case Mips.NOR:
+			return () -> finishOp(dstReg, ~(registers[rs] | registers[rt]));
+
+		case Mips.LUI:
+			return () -> finishOp(dstReg, imm << 16);
+
+		case Mips.SLT:
+			if (unsigned) {
+				return () -> finishOp(dstReg, Integer.compareUnsigned(
+						registers[rs], src2imm ? imm : registers[rt]) < 0 ? 1
+						: 0);
+			}
+			return () -> finishOp(dstReg,
+					registers[rs] < (src2imm ? imm : registers[rt]) ? 1 : 0);
+
+		// shifts operate on the sign-extended 64-bit source, as in execute()
+		case Mips.SLL:
+			if (Lib.test(Mips.SRC1SH, d.flags))
+				return () -> finishOp(dstReg, registers[rt] << (sh & 0x1F));
+			return () -> finishOp(dstReg,
+					registers[rt] << (registers[rs] & 0x1F));
+		case Mips.SRA:
+			if (Lib.test(Mips.SRC1SH, d.flags))
+				return () -> finishOp(dstReg, registers[rt] >> (sh & 0x1F));
+			return () -> finishOp(dstReg,
+					registers[rt] >> (registers[rs] & 0x1F));
+		case Mips.SRL:
+			if (Lib.test(Mips.SRC1SH, d.flags)) {
+				return () -> finishOp(dstReg,
+						(int) ((long) registers[rt] >>> (sh & 0x1F)));
+			}
+			return () -> finishOp(dstReg,
+					(int) ((long) registers[rt] >>> (registers[rs] & 0x1F)));
+
+		case Mips.LOAD: {
+			final int size = d.size;
+			return () -> {
+				int value = readMem(registers[rs] + imm, size);
+				if (!unsigned)
+					value = Lib.extend(value, 0, size * 8);
+				delayedLoad(dstReg, value, 0xFFFFFFFF);
+				advancePC(registers[regNextPC] + 4);
+			};
+		}
+
+		case Mips.STORE: {
+			final int size = d.size;
+			return () -> {
+				writeMem(registers[rs] + imm, size, registers[rt]);
+				finishOp(-1, 0);
+			};
 		}
+
+		case Mips.BEQ:
+		case Mips.BNE:
+		case Mips.BLEZ:
+		case Mips.BGTZ:
+		case Mips.BLTZ:
+		case Mips.BGEZ: {
+			final int operation = d.operation;
+			final int offset = d.branchOffset;
+			final boolean link = Lib.test(Mips.LINK, d.flags);
+			return () -> {
+				int src1 = registers[rs];
+				boolean branch;
+				switch (operation) {
+				case Mips.BEQ:
+					branch = (src1 == registers[rt]);
+					break;
+				case Mips.BNE:
+					branch = (src1 != registers[rt]);
+					break;
+				case Mips.BLEZ:
+					branch = (src1 <= 0);
+					break;
+				case Mips.BGTZ:
+					branch = (src1 > 0);
+					break;
+				case Mips.BLTZ:
+					branch = (src1 < 0);
+					break;
+				default:
+					branch = (src1 >= 0);
+					break;
+				}
+
+				int nextPC = registers[regNextPC] + 4;
+				int jtarget = registers[regNextPC] + offset;
+
+				finishLoad();
+				if (link)
+					registers[regRA] = nextPC;
+				advancePC(branch ? jtarget : nextPC);
+			};
+		}
+
+		case Mips.JUMP: {
+			final boolean link = Lib.test(Mips.LINK, d.flags);
+			final int target = d.target << 2;
+			if (d.format == Mips.RFMT) {
+				return () -> {
+					int jtarget = registers[rs];
+					int nextPC = registers[regNextPC] + 4;
+
+					finishLoad();
+					if (link && dstReg != 0)
+						registers[dstReg] = nextPC;
+					advancePC(jtarget);
+				};
+			}
+			return () -> {
+				int jtarget = (registers[regNextPC] & 0xF0000000) | target;
+				int nextPC = registers[regNextPC] + 4;
+
+				finishLoad();
+				if (link)
+					registers[regRA] = nextPC;
+				advancePC(jtarget);
+			};
+		}
+
+		default:
+			return () -> blockInstruction.run(d);
+		}
+	}
+
+	/**
+	 * Complete a straight-line instruction in a basic block: finish any
+	 * delayed load, write the destination register, and advance the PC.
+	 * 
+	 * @param dstReg the destination register, or -1 for none.
+	 * @param dst the value to write.
+	 */
+	private void finishOp(int dstReg, int dst) {
+		finishLoad();
+
+		if (dstReg > 0)
+			registers[dstReg] = dst;
+
+		advancePC(registers[regNextPC] + 4);
 	}
 
 	/**
@@ -175,6 +711,7 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+		flushTranslationCache();
 	}
 
 	/**
@@ -188,6 +725,34 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Return the number of entries in each set of this processor's TLB. If
+	 * this equals <tt>getTLBSize()</tt>, the TLB is fully associative.
+	 * 
+	 * @return the associativity of this processor's TLB.
+	 */
+	public int getTLBAssociativity() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbAssociativity;
+	}
+
+	/**
+	 * Return the TLB set that can hold a translation for the specified virtual
+	 * page. Set <i>s</i> consists of the entries numbered
+	 * <tt><i>s</i>*getTLBAssociativity()</tt> through
+	 * <tt>(<i>s</i>+1)*getTLBAssociativity()-1</tt>.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return the set that can hold the translation.
+	 */
+	public int getTLBSet(int vpn) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(vpn >= 0 && vpn < maxPages);
+
+		return vpn % numTLBSets;
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 * 
@@ -205,8 +770,9 @@ public final class Processor {
 	 * Fill the specified TLB entry.
 	 * 
 	 * <p>
-	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * A valid entry must be placed in the set returned by
+	 * <tt>getTLBSet()</tt>. By default the TLB is fully associative, so the
+	 * location of an entry within the TLB does not affect anything.
 	 * 
 	 * @param number the index into the TLB.
 	 * @param entry the new contents of the TLB entry.
@@ -215,6 +781,18 @@ public final class Processor {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
+		int set = number / tlbAssociativity;
+		Lib.assertTrue(!entry.valid || entry.vpn % numTLBSets == set,
+				"TLB entry written to the wrong set");
+
+		TranslationEntry old = translations[number];
+		if (old.valid && (!entry.valid || old.vpn != entry.vpn))
+			privilege.stats.tlbSetEvictions[set]++;
+
+		// a stale mapping may be cached for either the old or the new page
+		flushTranslationCache(translations[number].vpn);
+		flushTranslationCache(entry.vpn);
+
 		translations[number] = new TranslationEntry(entry);
 	}
 
@@ -278,6 +856,52 @@ public final class Processor {
 		delayedLoad(0, 0, 0);
 	}
 
+	/**
+	 * Discard any pre-decoded instructions cached for the specified physical
+	 * page. Called whenever the contents of the page are replaced.
+	 * 
+	 * @param ppn the physical page whose decoded instructions are stale.
+	 */
+	void flushDecodeCache(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+		decodeCache[ppn] = null;
+		pageStores[ppn]++;
+	}
+
+	/**
+	 * Return the decoded form of the instruction at the specified physical
+	 * address, decoding it only if it is not already cached. The raw word is
+	 * compared against the cached entry, so that stores made by the kernel
+	 * directly into <tt>getMemory()</tt> can never execute stale instructions.
+	 * 
+	 * @param paddr the physical address of the instruction.
+	 * @param value the raw instruction word at that address.
+	 * @return the decoded instruction.
+	 */
+	private Decoded lookupDecoded(int paddr, int value) {
+		int ppn = paddr / pageSize;
+
+		Decoded[] page = decodeCache[ppn];
+		if (page == null) {
+			page = new Decoded[pageSize / 4];
+			decodeCache[ppn] = page;
+		}
+
+		int index = (paddr % pageSize) / 4;
+
+		Decoded decoded = page[index];
+		if (decoded == null) {
+			decoded = new Decoded(value);
+			page[index] = decoded;
+		}
+		else if (decoded.value != value) {
+			decoded.decode(value);
+		}
+
+		return decoded;
+	}
+
 	/**
 	 * Translate a virtual address into a physical address, using either a page
 	 * table or a TLB. Check for alignment, make sure the virtual page is valid,
@@ -292,7 +916,7 @@ public final class Processor {
 	 */
 	private int translate(int vaddr, int size, boolean writing)
 			throws MipsException {
-		if (Lib.test(dbgProcessor))
+		if (traceProcessor)
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
 
@@ -306,6 +930,48 @@ public final class Processor {
 		int vpn = pageFromAddress(vaddr);
 		int offset = offsetFromAddress(vaddr);
 
+		// try the translation cache first
+		int slot = ((vpn << 1) | (writing ? 1 : 0)) & (translationCacheSize - 1);
+		if (cachedVPN[slot] == vpn) {
+			TranslationEntry entry = cachedEntry[slot];
+
+			// page table entries belong to the kernel, so recheck them
+			if (usingTLB
+					|| (translations[vpn] == entry && entry.valid
+							&& entry.ppn == cachedPPN[slot] && !(writing
+							&& entry.readOnly))) {
+				entry.used = true;
+				if (writing)
+					entry.dirty = true;
+
+				if (usingTLB)
+					privilege.stats.tlbSetHits[vpn % numTLBSets]++;
+
+				int paddr = (cachedPPN[slot] * pageSize) + offset;
+
+				if (traceProcessor)
+					System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+				return paddr;
+			}
+		}
+
+		return translateMiss(vaddr, vpn, offset, slot, writing);
+	}
+
+	/**
+	 * Translate a virtual address that is not in the translation cache, and
+	 * cache the result.
+	 * 
+	 * @param vaddr the virtual address to translate.
+	 * @param vpn the virtual page number of <tt>vaddr</tt>.
+	 * @param offset the page offset of <tt>vaddr</tt>.
+	 * @param slot the translation cache slot for this page and access type.
+	 * @param writing <tt>true</tt> if this is a store operation.
+	 * @return the physical address.
+	 * @exception MipsException if a translation error occurred.
+	 */
+	private int translateMiss(int vaddr, int vpn, int offset, int slot,
+			boolean writing) throws MipsException {
 		TranslationEntry entry = null;
 
 		// if not using a TLB, then the vpn is an index into the table
@@ -319,9 +985,12 @@ public final class Processor {
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look through the TLB entries in this vpn's set
 		else {
-			for (int i = 0; i < tlbSize; i++) {
+			int set = vpn % numTLBSets;
+			int first = set * tlbAssociativity;
+
+			for (int i = first; i < first + tlbAssociativity; i++) {
 				if (translations[i].valid && translations[i].vpn == vpn) {
 					entry = translations[i];
 					break;
@@ -329,9 +998,12 @@ public final class Processor {
 			}
 			if (entry == null) {
 				privilege.stats.numTLBMisses++;
+				privilege.stats.tlbSetMisses[set]++;
 				Lib.debug(dbgProcessor, "\t\tTLB miss");
 				throw new MipsException(exceptionTLBMiss, vaddr);
 			}
+
+			privilege.stats.tlbSetHits[set]++;
 		}
 
 		// check if trying to write a read-only page
@@ -352,13 +1024,40 @@ public final class Processor {
 		if (writing)
 			entry.dirty = true;
 
+		cachedVPN[slot] = vpn;
+		cachedEntry[slot] = entry;
+		cachedPPN[slot] = ppn;
+
 		int paddr = (ppn * pageSize) + offset;
 
-		if (Lib.test(dbgProcessor))
+		if (traceProcessor)
 			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
 		return paddr;
 	}
 
+	/**
+	 * Discard every cached translation.
+	 */
+	private void flushTranslationCache() {
+		Arrays.fill(cachedVPN, -1);
+		Arrays.fill(cachedEntry, null);
+	}
+
+	/**
+	 * Discard the cached translations for the specified virtual page.
+	 * 
+	 * @param vpn the virtual page number.
+	 */
+	private void flushTranslationCache(int vpn) {
+		for (int writing = 0; writing <= 1; writing++) {
+			int slot = ((vpn << 1) | writing) & (translationCacheSize - 1);
+			if (cachedVPN[slot] == vpn) {
+				cachedVPN[slot] = -1;
+				cachedEntry[slot] = null;
+			}
+		}
+	}
+
 	/**
 	 * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
 	 * and return the result.
@@ -369,16 +1068,13 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private int readMem(int vaddr, int size) throws MipsException {
-		if (Lib.test(dbgProcessor))
+		if (traceProcessor)
 			System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size);
 
-		Lib.assertTrue(size == 1 || size == 2 || size == 4);
+		int value = readPhysical(translate(vaddr, size, false), size);
 
-		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				size);
-
-		if (Lib.test(dbgProcessor))
+		if (traceProcessor)
 			System.out.println("\t\tvalue read=0x"
 					+ Lib.toHexString(value, size * 2));
 
@@ -395,14 +1091,63 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private void writeMem(int vaddr, int size, int value) throws MipsException {
-		if (Lib.test(dbgProcessor))
+		if (traceProcessor)
 			System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size + ", value=0x"
 					+ Lib.toHexString(value, size * 2));
 
-		Lib.assertTrue(size == 1 || size == 2 || size == 4);
+		int paddr = translate(vaddr, size, true);
+
+		// cached blocks on this page must be checked before they are reused,
+		// and a running block on this page must stop
+		lastStorePPN = paddr / pageSize;
+		pageStores[lastStorePPN]++;
+
+		if (checkingBlocks) {
+			storeAddress = paddr;
+			storeSize = size;
+			storeOldValue = readPhysical(paddr, size);
+		}
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		writePhysical(paddr, size, value);
+	}
+
+	/**
+	 * Read <i>size</i> (1, 2, or 4) bytes of physical memory at <i>paddr</i>.
+	 * Bytes and halfwords are sign-extended, as by <tt>Lib.bytesToInt()</tt>.
+	 */
+	private int readPhysical(int paddr, int size) {
+		switch (size) {
+		case 4:
+			return (int) intView.get(mainMemory, paddr);
+		case 2:
+			return (short) shortView.get(mainMemory, paddr);
+		case 1:
+			return mainMemory[paddr];
+		default:
+			Lib.assertNotReached();
+			return 0;
+		}
+	}
+
+	/**
+	 * Write the low <i>size</i> (1, 2, or 4) bytes of <i>value</i> to physical
+	 * memory at <i>paddr</i>.
+	 */
+	private void writePhysical(int paddr, int size, int value) {
+		switch (size) {
+		case 4:
+			intView.set(mainMemory, paddr, value);
+			break;
+		case 2:
+			shortView.set(mainMemory, paddr, (short) value);
+			break;
+		case 1:
+			mainMemory[paddr] = (byte) value;
+			break;
+		default:
+			Lib.assertNotReached();
+		}
 	}
 
 	/**
@@ -552,12 +1297,50 @@ public final class Processor {
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
+	/** Number of TLB entries in each set. */
+	private int tlbAssociativity = 4;
+
+	/** Number of sets in the TLB. */
+	private int numTLBSets = 1;
+
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
 	 */
 	private TranslationEntry[] translations;
 
+	/**
+	 * Number of slots in the translation cache, a direct-mapped cache of
+	 * recent translations indexed by virtual page number and access type.
+	 * Must be a power of two.
+	 */
+	private static final int translationCacheSize = 64;
+
+	/** The virtual page cached in each slot, or -1 if the slot is empty. */
+	private int[] cachedVPN;
+
+	/** The translation entry cached in each slot. */
+	private TranslationEntry[] cachedEntry;
+
+	/** The physical page cached in each slot. */
+	private int[] cachedPPN;
+
+	/**
+	 * Little-endian views of <tt>mainMemory</tt> as words and halfwords, so
+	 * that loads and stores do not assemble values a byte at a time.
+	 */
+	private static final VarHandle intView = MethodHandles
+			.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private static final VarHandle shortView = MethodHandles
+			.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * The debug flags of this class, looked up once when the processor is
+	 * created. Debug flags are fixed before then.
+	 */
+	private boolean traceProcessor, traceDisassemble, traceFullDisassemble;
+
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
 
@@ -570,6 +1353,13 @@ public final class Processor {
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
 
+	/**
+	 * Pre-decoded instructions, indexed by physical page and then by word
+	 * within the page. A page's array is allocated the first time an
+	 * instruction is fetched from it, and discarded when the page is loaded.
+	 */
+	private Decoded[][] decodeCache;
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -579,8 +1369,63 @@ public final class Processor {
 
 	private static final char dbgFullDisassemble = 'M';
 
+	/** <tt>true</tt> if <tt>Processor.engine</tt> selects basic blocks. */
+	private boolean usingBlocks = false;
+
+	/**
+	 * Basic blocks, indexed by the physical page and word of their first
+	 * instruction.
+	 */
+	private Block[][] blockCache;
+
+	/** Runs the less common instructions inside basic blocks. */
+	private Instruction blockInstruction = new Instruction();
+
+	/**
+	 * <tt>true</tt> if <tt>Processor.engine</tt> is <tt>check</tt>, so every
+	 * instruction in a basic block is checked against the interpreter.
+	 */
+	private boolean checkingBlocks = false;
+
+	/** Runs the instructions of basic blocks being checked. */
+	private Instruction checkInstruction = new Instruction();
+
+	/**
+	 * The physical address written by the most recent store while checking
+	 * blocks, or -1 if <tt>checkOp()</tt> has seen no store.
+	 */
+	private int storeAddress = -1;
+
+	/** The size of that store, and the value it overwrote. */
+	private int storeSize, storeOldValue;
+
+	/**
+	 * Incremented whenever the pipe is flushed or an exception is handled,
+	 * either of which can invalidate a running basic block.
+	 */
+	private int pipeGeneration = 0;
+
+	/**
+	 * The number of upcoming instructions whose ticks cannot cause an
+	 * interrupt.
+	 */
+	private long quietTicks = 0;
+
+	/** The number of ticks counted but not yet added to the simulated time. */
+	private long unsyncedTicks = 0;
+
+	/** The physical page written by the most recent store. */
+	private int lastStorePPN = -1;
+
+	/**
+	 * The number of user stores into each physical page, and of times its
+	 * contents were replaced.
+	 */
+	private int[] pageStores;
+
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
+			pipeGeneration++;
 			finishLoad();
 		}
 	}
@@ -600,12 +1445,18 @@ public final class Processor {
 		}
 
 		public void handle() {
+			pipeGeneration++;
+
+			// the kernel must see the current time, and may change what is due
+			syncTicks();
+			quietTicks = 0;
+
 			writeRegister(regCause, cause);
 
 			if (hasBadVAddr)
 				writeRegister(regBadVAddr, badVAddr);
 
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+			if (traceDisassemble || traceFullDisassemble)
 				System.out.println("exception: " + exceptionNames[cause]);
 
 			finishLoad();
@@ -633,88 +1484,79 @@ public final class Processor {
 			writeBack();
 		}
 
+		/**
+		 * Run an instruction that has already been fetched and decoded.
+		 */
+		public void run(Decoded decoded) throws MipsException {
+			this.decoded = decoded;
+			value = decoded.value;
+
+			decode();
+			execute();
+			writeBack();
+		}
+
 		private boolean test(int flag) {
 			return Lib.test(flag, flags);
 		}
 
 		private void fetch() throws MipsException {
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
+			if ((traceDisassemble && !traceProcessor)
+					|| traceFullDisassemble)
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
-		}
+			int vaddr = registers[regPC];
 
-		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+			if (traceProcessor)
+				System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
+						+ ", size=4");
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
+			int paddr = translate(vaddr, 4, false);
+			value = (int) intView.get(mainMemory, paddr);
 
-			operation = info.operation;
-			name = info.name;
-			format = info.format;
-			flags = info.flags;
+			if (traceProcessor)
+				System.out.println("\t\tvalue read=0x"
+						+ Lib.toHexString(value, 8));
+
+			decoded = lookupDecoded(paddr, value);
+		}
+
+		private void decode() {
+			// the fields that depend only on the instruction word are cached
+			op = decoded.op;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			rd = decoded.rd;
+			sh = decoded.sh;
+			func = decoded.func;
+			target = decoded.target;
+			imm = decoded.imm;
+
+			operation = decoded.operation;
+			name = decoded.name;
+			format = decoded.format;
+			flags = decoded.flags;
+
+			size = decoded.size;
+			dstReg = decoded.dstReg;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
 			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
+				jtarget = registers[regNextPC] + decoded.branchOffset;
 			else if (format == Mips.JFMT)
 				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -735,13 +1577,13 @@ public final class Processor {
 				src2 &= 0xFFFFFFFFL;
 			}
 
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+			if (traceDisassemble || traceFullDisassemble)
 				print();
 		}
 
 		private void print() {
-			if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor)
-					&& !Lib.test(dbgFullDisassemble))
+			if (traceDisassemble && traceProcessor
+					&& !traceFullDisassemble)
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
@@ -773,7 +1615,7 @@ public final class Processor {
 					minCharsPrinted += 2;
 					maxCharsPrinted += 3;
 
-					if (Lib.test(dbgFullDisassemble)) {
+					if (traceFullDisassemble) {
 						System.out
 								.print("#0x" + Lib.toHexString(registers[rs]));
 						minCharsPrinted += 11;
@@ -785,7 +1627,7 @@ public final class Processor {
 					minCharsPrinted += 2;
 					maxCharsPrinted += 3;
 
-					if (Lib.test(dbgFullDisassemble)
+					if (traceFullDisassemble
 							&& (i != 0 || !test(Mips.DST))
 							&& !test(Mips.DELAYEDLOAD)) {
 						System.out
@@ -817,7 +1659,7 @@ public final class Processor {
 					minCharsPrinted += 4;
 					maxCharsPrinted += 5;
 
-					if (Lib.test(dbgFullDisassemble)) {
+					if (traceFullDisassemble) {
 						System.out
 								.print("#0x" + Lib.toHexString(registers[rs]));
 						minCharsPrinted += 11;
@@ -857,8 +1699,8 @@ public final class Processor {
 				}
 			}
 
-			if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor)
-					&& !Lib.test(dbgFullDisassemble))
+			if (traceDisassemble && traceProcessor
+					&& !traceFullDisassemble)
 				System.out.print("\n");
 		}
 
@@ -1051,7 +1893,7 @@ public final class Processor {
 				registers[dstReg] = (int) dst;
 
 			if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-				if (Lib.test(dbgFullDisassemble)) {
+				if (traceFullDisassemble) {
 					System.out.print("#0x" + Lib.toHexString((int) dst));
 					if (test(Mips.DELAYEDLOAD))
 						System.out.print(" (delayed load)");
@@ -1064,12 +1906,14 @@ public final class Processor {
 
 			advancePC(nextPC);
 
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
+			if ((traceDisassemble && !traceProcessor)
+					|| traceFullDisassemble)
 				System.out.print("\n");
 		}
 
 		// state used to execute a single instruction
+		Decoded decoded;
+
 		int value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
@@ -1087,6 +1931,128 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * A single instruction of a basic block, reduced to its effect on the
+	 * processor state.
+	 */
+	private interface BlockOp {
+		void run() throws MipsException;
+	}
+
+	/**
+	 * A straight-line sequence of instructions within one physical page.
+	 */
+	private class Block {
+		Block(int paddr, int length) {
+			this.paddr = paddr;
+			ppn = paddr / pageSize;
+			values = new int[length];
+			ops = new BlockOp[length];
+		}
+
+		/**
+		 * Test whether memory still holds the instructions this block was
+		 * built from.
+		 */
+		boolean matches() {
+			for (int i = 0; i < values.length; i++) {
+				if ((int) intView.get(mainMemory, paddr + i * 4) != values[i])
+					return false;
+			}
+
+			return true;
+		}
+
+		int paddr, ppn;
+
+		int[] values;
+
+		BlockOp[] ops;
+
+		/**
+		 * The <tt>pipeGeneration</tt> and the <tt>pageStores</tt> count of
+		 * the block's page when it was last found to match memory.
+		 */
+		int generation, stores;
+	}
+
+	/**
+	 * The parts of a decoded instruction that depend only on the instruction
+	 * word, and not on the contents of any register.
+	 */
+	private static class Decoded {
+		Decoded(int value) {
+			decode(value);
+		}
+
+		void decode(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+			imm = Lib.extend(value, 0, 16);
+
+			// branch targets use the sign-extended immediate
+			branchOffset = imm << 2;
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, flags)) {
+				imm &= 0xFFFF;
+			}
+		}
+
+		int value, op, rs, rt, rd, sh, func, target, imm, branchOffset;
+
+		int operation, format, flags;
+
+		String name;
+
+		int size, dstReg;
+	}
+
 	private static class Mips {
 		Mips() {
 		}
@@ -26,13 +26,42 @@ public final class Stats {
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
 				+ ", TLB misses " + numTLBMisses);
+		if (tlbSetHits != null)
+			printTLB();
 		System.out.println("Swap: COFF reads " + numCOFFReads
 				+ ", swap reads " + numSwapReads
 			        + ", swap writes " + numSwapWrites);
+		System.out.println("Prefetch: pages " + numPrefetches + ", hits "
+				+ numPrefetchHits);
+		System.out.println("Threads: pool hits " + numThreadPoolHits
+				+ ", misses " + numThreadPoolMisses);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
 	}
 
+	/**
+	 * Print out the TLB hits, misses and evictions, and each set's counts if
+	 * the TLB has more than one set.
+	 */
+	private void printTLB() {
+		long hits = 0, misses = 0, evictions = 0;
+		for (int i = 0; i < tlbSetHits.length; i++) {
+			hits += tlbSetHits[i];
+			misses += tlbSetMisses[i];
+			evictions += tlbSetEvictions[i];
+		}
+
+		System.out.println("TLB: hits " + hits + ", misses " + misses
+				+ ", evictions " + evictions);
+
+		if (tlbSetHits.length > 1) {
+			for (int i = 0; i < tlbSetHits.length; i++)
+				System.out.println("  set " + i + ": hits " + tlbSetHits[i]
+						+ ", misses " + tlbSetMisses[i] + ", evictions "
+						+ tlbSetEvictions[i]);
+		}
+	}
+
 	/**
 	 * The total amount of simulated time that has passed since Nachos started.
 	 */
@@ -66,6 +95,24 @@ public final class Stats {
 	/** The total number of TLB misses that have occurred. */
 	public int numTLBMisses = 0;
 
+	/**
+	 * The number of TLB hits in each TLB set, or <tt>null</tt> if the
+	 * processor has no TLB.
+	 */
+	public long[] tlbSetHits = null;
+
+	/**
+	 * The number of TLB misses in each TLB set, or <tt>null</tt> if the
+	 * processor has no TLB.
+	 */
+	public long[] tlbSetMisses = null;
+
+	/**
+	 * The number of valid TLB entries replaced by a different page in each TLB
+	 * set, or <tt>null</tt> if the processor has no TLB.
+	 */
+	public long[] tlbSetEvictions = null;
+
         /** The total number of pages read from COFF files. */
         public int numCOFFReads = 0;
 
@@ -75,6 +122,24 @@ public final class Stats {
         /** The total number of pages written to swap. */
         public int numSwapWrites = 0;
 
+	/** The total number of pages read ahead of a page fault. */
+	public int numPrefetches = 0;
+
+	/**
+	 * The number of pages read ahead that were referenced before being
+	 * evicted.
+	 */
+	public int numPrefetchHits = 0;
+
+	/**
+	 * The number of threads started on the Java thread of a destroyed
+	 * thread.
+	 */
+	public int numThreadPoolHits = 0;
+
+	/** The number of threads started on a new Java thread. */
+	public int numThreadPoolMisses = 0;
+
 	/** The total number of packets Nachos has sent to the network. */
 	public int numPacketsSent = 0;
 
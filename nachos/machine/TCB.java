@@ -5,7 +5,10 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
-import java.util.Vector;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +17,19 @@ import java.security.PrivilegedAction;
  * object.
  * 
  * <p>
+ * <tt>TCB.backend</tt> selects how a context switch hands the CPU from one
+ * JVM thread to the next. <tt>monitor</tt>, the default, waits and notifies
+ * on each TCB's monitor. <tt>handoff</tt> parks the old thread and unparks the
+ * new one directly, and <tt>virtual</tt> does the same with virtual threads,
+ * which make a large <tt>TCB.maxThreads</tt> cheap; it needs a JVM with
+ * virtual threads. In every case exactly one TCB runs at a time.
+ * 
+ * <p>
+ * The Java thread of a destroyed TCB is kept, parked, in a pool of up to
+ * <tt>TCB.poolSize</tt> threads, and reused by the next <tt>start()</tt>, so
+ * that forking short-lived threads does not create a Java thread each time.
+ * 
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -39,6 +55,25 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		String backend = Config.getString("TCB.backend", "monitor");
+		Lib.assertTrue(backend.equals("monitor") || backend.equals("handoff")
+				|| backend.equals("virtual"), "bad TCB.backend: " + backend);
+
+		handoff = !backend.equals("monitor");
+		if (backend.equals("virtual")) {
+			findVirtualThreads();
+			Lib.assertTrue(ofVirtual != null,
+					"TCB.backend = virtual needs a JVM with virtual threads");
+		}
+
+		threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+		Lib.assertTrue(threadLimit > 0);
+
+		int poolSize = Config.getInteger("TCB.poolSize", 16);
+		Lib.assertTrue(poolSize >= 0);
+		if (poolSize > 0)
+			pool = new LinkedBlockingDeque<HostThread>(poolSize);
 	}
 
 	/**
@@ -68,7 +103,7 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(numRunningThreads.get() < threadLimit);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -83,39 +118,48 @@ public final class TCB {
 		/*
 		 * At this point all checks are complete, so we go ahead and start the
 		 * TCB. Whether or not this is the first TCB, it gets added to
-		 * runningThreads, and we save the target closure.
+		 * numRunningThreads, and we save the target closure.
 		 */
-		runningThreads.add(this);
+		numRunningThreads.incrementAndGet();
 
 		this.target = target;
 
 		if (!isFirstTCB) {
 			/*
-			 * If this is not the first TCB, we have to make a new Java thread
-			 * to run it. Creating Java threads is a privileged operation.
+			 * If this is not the first TCB, we need a Java thread to run it.
+			 * We reuse the thread of a destroyed TCB if one is pooled, and
+			 * otherwise make a new one. Creating Java threads is a privileged
+			 * operation.
 			 */
-			tcbTarget = new Runnable() {
-				public void run() {
-					threadroot();
-				}
-			};
+			HostThread host = (pool != null) ? pool.pollFirst() : null;
 
-			privilege.doPrivileged(new Runnable() {
-				public void run() {
-					javaThread = new Thread(tcbTarget);
-				}
-			});
+			if (host != null) {
+				privilege.stats.numThreadPoolHits++;
+			}
+			else {
+				privilege.stats.numThreadPoolMisses++;
+
+				final HostThread newHost = new HostThread();
+				privilege.doPrivileged(new Runnable() {
+					public void run() {
+						newHost.thread = newThread(newHost);
+					}
+				});
+				host = newHost;
+			}
+
+			javaThread = host.thread;
 
 			/*
-			 * The Java thread hasn't yet started, but we need to get it
-			 * blocking in yield(). We do this by temporarily turning off the
-			 * current TCB, starting the new Java thread, and waiting for it to
-			 * wake us up from threadroot(). Once the new TCB wakes us up, it's
-			 * safe to context switch to the new TCB.
+			 * The Java thread isn't running this TCB yet, but we need to get
+			 * it blocking in yield(). We do this by temporarily turning off
+			 * the current TCB, handing this TCB to the Java thread, and
+			 * waiting for it to wake us up from threadroot(). Once the new
+			 * TCB wakes us up, it's safe to context switch to the new TCB.
 			 */
 			currentTCB.running = false;
 
-			this.javaThread.start();
+			host.assign(this);
 			currentTCB.waitForInterrupt();
 		}
 		else {
@@ -255,22 +299,126 @@ public final class TCB {
 				privilege.exit(1);
 			}
 
-			runningThreads.removeElement(this);
-			if (runningThreads.isEmpty())
+			if (numRunningThreads.decrementAndGet() == 0)
 				privilege.exit(0);
 		}
 		catch (Throwable e) {
 			System.out.print("\n");
 			e.printStackTrace();
 
-			runningThreads.removeElement(this);
-			if (runningThreads.isEmpty())
+			if (numRunningThreads.decrementAndGet() == 0)
 				privilege.exit(1);
 			else
 				die();
 		}
 	}
 
+	/**
+	 * A Java thread that runs TCBs one after the other. After the TCB it is
+	 * running is destroyed, it waits in the pool for <tt>start()</tt> to hand
+	 * it another, or exits if the pool is full.
+	 */
+	private static class HostThread implements Runnable {
+		/**
+		 * Run the specified TCB in this thread, starting the thread if this
+		 * is its first TCB. Called by <tt>start()</tt>.
+		 */
+		void assign(TCB tcb) {
+			next = tcb;
+
+			if (!started) {
+				started = true;
+				thread.start();
+			}
+			else {
+				LockSupport.unpark(thread);
+			}
+		}
+
+		public void run() {
+			TCB tcb = takeNext();
+
+			while (true) {
+				tcb.threadroot();
+
+				/*
+				 * The TCB was destroyed, and the destroying TCB may already
+				 * be calling start(), so the pool is the only state shared
+				 * with it from here on.
+				 */
+				if (pool == null || !pool.offerFirst(this))
+					return;
+
+				tcb = takeNext();
+			}
+		}
+
+		/**
+		 * Wait for <tt>assign()</tt> to hand this thread a TCB, and return it.
+		 */
+		private TCB takeNext() {
+			TCB tcb;
+			while ((tcb = next) == null)
+				LockSupport.park(this);
+
+			next = null;
+			return tcb;
+		}
+
+		/** The Java thread. */
+		Thread thread;
+
+		/** The TCB handed to this thread and not yet taken. */
+		private volatile TCB next = null;
+
+		/** Only accessed by the current TCB, in <tt>start()</tt>. */
+		private boolean started = false;
+	}
+
+	/**
+	 * Create a Java thread to run a TCB: a virtual thread with the
+	 * <tt>virtual</tt> backend, else a platform thread.
+	 */
+	private static Thread newThread(Runnable target) {
+		if (ofVirtual == null)
+			return new Thread(target);
+
+		try {
+			return (Thread) unstarted.invoke(ofVirtual.invoke(null), target);
+		}
+		catch (Exception e) {
+			Lib.assertNotReached("TCB.backend = virtual: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Look up <tt>Thread.ofVirtual()</tt> and <tt>Thread.Builder.unstarted()
+	 * </tt>, and make sure they work by creating a virtual thread. Leaves
+	 * <tt>ofVirtual</tt> <tt>null</tt> if this JVM does not have virtual
+	 * threads, or has them only as a preview feature.
+	 */
+	private static void findVirtualThreads() {
+		try {
+			// the builder's own class is not public, so call it through the
+			// public interface
+			Method builder = Thread.class.getMethod("ofVirtual");
+			Method start = Class.forName("java.lang.Thread$Builder")
+					.getMethod("unstarted", Runnable.class);
+
+			start.invoke(builder.invoke(null), new Runnable() {
+				public void run() {
+				}
+			});
+
+			ofVirtual = builder;
+			unstarted = start;
+		}
+		catch (Exception e) {
+			ofVirtual = null;
+		}
+	}
+
 	/**
 	 * Invoked by threadroot() and by contextSwitch() when it is necessary to
 	 * wait for another TCB to context switch to this TCB. Since this TCB might
@@ -297,8 +445,23 @@ public final class TCB {
 	 * process of starting and destroying TCBs, as well as in context switching
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * 
+	 * <p>
+	 * With the <tt>handoff</tt> and <tt>virtual</tt> backends, the thread
+	 * parks instead. <tt>running</tt> is volatile, so seeing it set also
+	 * makes visible everything the waking TCB did before setting it.
 	 */
-	private synchronized void waitForInterrupt() {
+	private void waitForInterrupt() {
+		if (handoff) {
+			while (!running)
+				LockSupport.park(this);
+		}
+		else {
+			waitOnMonitor();
+		}
+	}
+
+	private synchronized void waitOnMonitor() {
 		while (!running) {
 			try {
 				wait();
@@ -314,7 +477,17 @@ public final class TCB {
 	 * starting and destroying TCBs, as well as in context switching to this
 	 * TCB.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
+		if (handoff) {
+			running = true;
+			LockSupport.unpark(javaThread);
+		}
+		else {
+			signalMonitor();
+		}
+	}
+
+	private synchronized void signalMonitor() {
 		running = true;
 		notify();
 	}
@@ -341,11 +514,36 @@ public final class TCB {
 	}
 
 	/**
-	 * The maximum number of started, non-destroyed TCB's that can be in
-	 * existence.
+	 * The default maximum number of started, non-destroyed TCB's that can be
+	 * in existence.
 	 */
 	public static final int maxThreads = 250;
 
+	/**
+	 * The maximum number of started, non-destroyed TCB's that can be in
+	 * existence, read from <tt>TCB.maxThreads</tt>.
+	 */
+	private static int threadLimit = maxThreads;
+
+	/** <tt>true</tt> if context switches park and unpark threads. */
+	private static boolean handoff = false;
+
+	/**
+	 * <tt>Thread.ofVirtual()</tt>, if the <tt>virtual</tt> backend is selected
+	 * and this JVM has virtual threads.
+	 */
+	private static Method ofVirtual = null;
+
+	/** <tt>Thread.Builder.unstarted()</tt>, if <tt>ofVirtual</tt> is set. */
+	private static Method unstarted = null;
+
+	/**
+	 * The Java threads of destroyed TCBs, waiting to be reused, or
+	 * <tt>null</tt> if <tt>TCB.poolSize</tt> is 0. The most recently used
+	 * thread is reused first.
+	 */
+	private static LinkedBlockingDeque<HostThread> pool = null;
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -362,18 +560,17 @@ public final class TCB {
 	private static TCB currentTCB = null;
 
 	/**
-	 * A vector containing all <i>running</i> TCB objects. It is initialized to
-	 * an empty vector when the <tt>TCB</tt> class is loaded. TCB objects are
-	 * added only in <tt>start(Runnable)</tt>, which can only be invoked once on
-	 * each TCB object. TCB objects are removed only in each of the
-	 * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
-	 * invoked on thread termination. The maximum number of threads in
-	 * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
-	 * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
-	 * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once the
-	 * first TCB is created, this vector is basically never empty.
+	 * The number of <i>running</i> TCB objects. It is incremented only in
+	 * <tt>start(Runnable)</tt>, which can only be invoked once on each TCB
+	 * object, and decremented only in each of the <tt>catch</tt> clauses of
+	 * <tt>threadroot()</tt>, one of which is always invoked on thread
+	 * termination. A dying TCB decrements it after the next TCB is already
+	 * running, so it is atomic. It is limited to <tt>TCB.maxThreads</tt> by
+	 * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops it to zero,
+	 * Nachos exits, so once the first TCB is created, it is basically never
+	 * zero.
 	 */
-	private static Vector<TCB> runningThreads = new Vector<TCB>();
+	private static AtomicInteger numRunningThreads = new AtomicInteger();
 
 	private static Privilege privilege;
 
@@ -396,14 +593,14 @@ public final class TCB {
 
 	/**
 	 * <tt>true</tt> if and only if the Java thread bound to this TCB ought to
-	 * be running. This is an entirely different condition from membership in
-	 * <tt>runningThreads</tt>, which contains all TCB objects that have started
-	 * and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
-	 * associated Java thread ought to run ASAP. When starting or destroying a
-	 * TCB, this is temporarily true for a thread other than that of the current
-	 * TCB.
+	 * be running. This is an entirely different condition from being counted
+	 * in <tt>numRunningThreads</tt>, which counts all TCB objects that have
+	 * started and have not terminated. <tt>running</tt> is only <tt>true</tt>
+	 * when the associated Java thread ought to run ASAP. When starting or
+	 * destroying a TCB, this is temporarily true for a thread other than that
+	 * of the current TCB.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -418,8 +615,6 @@ public final class TCB {
 
 	private Runnable target;
 
-	private Runnable tcbTarget;
-
 	private static class TCBPrivilege implements Privilege.TCBPrivilege {
 		public void associateThread(KThread thread) {
 			Lib.assertTrue(currentTCB != null);
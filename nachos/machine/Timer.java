@@ -13,6 +13,11 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is a
  * small degree of randomness here, so interrupts do not occur exactly every 500
  * ticks.
+ * 
+ * <p>
+ * The timer also has a one-shot alarm, which interrupts once at a time set with
+ * <tt>setAlarm()</tt>, and the periodic interrupt can be stopped while it is
+ * not needed.
  */
 public final class Timer {
 	/**
@@ -31,6 +36,12 @@ public final class Timer {
 			}
 		};
 
+		alarmInterrupt = new Runnable() {
+			public void run() {
+				alarmInterrupt();
+			}
+		};
+
 		autoGraderInterrupt = new Runnable() {
 			public void run() {
 				Machine.autoGrader().timerInterrupt(Timer.this.privilege,
@@ -51,6 +62,47 @@ public final class Timer {
 		this.handler = handler;
 	}
 
+	/**
+	 * Set the callback to use as the alarm interrupt handler. It is called
+	 * once at the time set with <tt>setAlarm()</tt>.
+	 * 
+	 * @param handler the alarm interrupt handler.
+	 */
+	public void setAlarmHandler(Runnable handler) {
+		alarmHandler = handler;
+	}
+
+	/**
+	 * Set the alarm to interrupt at the specified time, or on the next tick if
+	 * that time has passed. This replaces any earlier setting.
+	 * 
+	 * @param time the time at which to call the alarm interrupt handler.
+	 */
+	public void setAlarm(long time) {
+		if (time == alarmTime)
+			return;
+
+		alarmTime = time;
+
+		// an earlier setting still pending is ignored when it comes due
+		privilege.interrupt.schedule(Math.max(1, time - getTime()), "alarm",
+				alarmInterrupt);
+	}
+
+	/**
+	 * Stop or restart the periodic timer interrupt. A restarted timer first
+	 * interrupts approximately 500 clock ticks later.
+	 * 
+	 * @param periodic <tt>false</tt> to stop the periodic interrupt.
+	 */
+	public void setPeriodic(boolean periodic) {
+		this.periodic = periodic;
+
+		// a pending interrupt simply carries on
+		if (periodic && !tickPending)
+			scheduleInterrupt();
+	}
+
 	/**
 	 * Get the current time.
 	 * 
@@ -61,6 +113,10 @@ public final class Timer {
 	}
 
 	private void timerInterrupt() {
+		tickPending = false;
+		if (!periodic)
+			return;
+
 		scheduleInterrupt();
 		scheduleAutoGraderInterrupt();
 
@@ -75,6 +131,17 @@ public final class Timer {
 		delay += Lib.random(delay / 10) - (delay / 20);
 
 		privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+		tickPending = true;
+	}
+
+	private void alarmInterrupt() {
+		if (alarmTime == noAlarm || getTime() < alarmTime)
+			return;
+
+		alarmTime = noAlarm;
+
+		if (alarmHandler != null)
+			alarmHandler.run();
 	}
 
 	private void scheduleAutoGraderInterrupt() {
@@ -87,6 +154,21 @@ public final class Timer {
 
 	private Runnable autoGraderInterrupt;
 
+	private Runnable alarmInterrupt;
+
+	/** <tt>false</tt> if the periodic interrupt is stopped. */
+	private boolean periodic = true;
+
+	/** <tt>true</tt> if a periodic interrupt is scheduled. */
+	private boolean tickPending = false;
+
+	/** The time the alarm is set for, or <tt>noAlarm</tt>. */
+	private long alarmTime = noAlarm;
+
+	private static final long noAlarm = -1;
+
+	private Runnable alarmHandler = null;
+
 	private Privilege privilege;
 
 	private Runnable handler = null;
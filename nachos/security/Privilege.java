@@ -157,6 +157,25 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Return the number of user mode ticks that can be passed to
+		 * <tt>advanceUserTicks()</tt> before a call to <tt>tick(false)</tt>
+		 * is needed to deliver an interrupt.
+		 * 
+		 * @return the number of ticks that can be skipped.
+		 */
+		public long userTicksUntilDue();
+
+		/**
+		 * Advance the simulated time by the specified number of user mode
+		 * ticks, without checking for pending interrupts. Has the same effect
+		 * as that many calls to <tt>tick(false)</tt>, provided
+		 * <tt>count</tt> does not exceed <tt>userTicksUntilDue()</tt>.
+		 * 
+		 * @param count the number of user mode ticks that have elapsed.
+		 */
+		public void advanceUserTicks(long count);
 	}
 
 	/**
@@ -0,0 +1,57 @@
+/*
+ * cowjoin.c
+ *
+ * Have the kernel write a child's exit status into a page of initialized
+ * data that this process has read but never written.  With copy-on-write
+ * sections the kernel makes the private copy itself, so the load and
+ * store that follow must see the new page rather than a stale read-only
+ * TLB entry for the shared one.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+
+/* initialized, so it lands in .data and is shared until written */
+int data[1024] = { [512] = -1 };
+
+int
+main (int argc, char *argv[])
+{
+    int *status = &data[512];
+    volatile int spin;
+    int pid, r;
+
+    pid = exec ("write1.coff", 0, 0);
+    if (pid < 0) {
+	printf ("exec failed\n");
+	exit (-1);
+    }
+
+    /* let the child finish so join() does not block and flush the TLB */
+    for (spin = 0; spin < 0x100000; spin++)
+	;
+
+    /* map the shared page read-only in the TLB */
+    if (*status != -1) {
+	printf ("unexpected initial value %d\n", *status);
+	exit (-1);
+    }
+
+    r = join (pid, status);
+    if (r != 1) {
+	printf ("join failed (r = %d)\n", r);
+	exit (-1);
+    }
+    if (*status != 0) {
+	printf ("stale status %d\n", *status);
+	exit (-1);
+    }
+
+    status[1] = 77;
+    if (status[1] != 77) {
+	printf ("store lost\n");
+	exit (-1);
+    }
+
+    return 0;
+}
@@ -67,3 +67,6 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
+	SYSCALLSTUB(munmap, syscallMunmap)
@@ -25,6 +25,9 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallReadv		13
+#define syscallWritev		14
+#define syscallMunmap		15
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -181,6 +184,46 @@ int read(int fileDescriptor, void *buffer, int count);
  */
 int write(int fileDescriptor, void *buffer, int count);
 
+/**
+ * A buffer for readv() and writev(): iov_len bytes starting at iov_base.
+ */
+struct iovec {
+    void *iov_base;
+    int iov_len;
+};
+
+/**
+ * Attempt to read into each of the iovcnt buffers described by iov in turn,
+ * from the file or stream referred to by fileDescriptor, as if read() were
+ * called on each buffer, but with a single system call. A buffer is filled
+ * completely before the next one is used. At most 16 buffers may be given.
+ *
+ * On success, the total number of bytes read is returned. As with read(), a
+ * number smaller than the total size of the buffers is not necessarily an
+ * error.
+ *
+ * On error, -1 is returned, and the new file position is undefined. This can
+ * happen for any reason read() could fail on one of the buffers, or if iov or
+ * iovcnt is invalid.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Attempt to write each of the iovcnt buffers described by iov in turn to the
+ * file or stream referred to by fileDescriptor, as if write() were called on
+ * each buffer, but with a single system call. At most 16 buffers may be
+ * given.
+ *
+ * On success, the total number of bytes written is returned. As with write(),
+ * it IS an error if this number is smaller than the total size of the
+ * buffers.
+ *
+ * On error, -1 is returned, and the new file position is undefined. This can
+ * happen for any reason write() could fail on one of the buffers, or if iov
+ * or iovcnt is invalid.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
 /**
  * Close a file descriptor, so that it no longer refers to any file or
  * stream and may be reused. The resources associated with the file
@@ -207,8 +250,13 @@ int unlink(char *name);
  * Map the file referenced by fileDescriptor into memory at address. The file
  * may be as large as 0x7FFFFFFF bytes.
  * 
+ * address must be page-aligned and lie past the program's own pages, and the
+ * map may not overlap another one. Pages are read from the file when they are
+ * first touched.
+ *
  * To maintain consistency, further calls to read() and write() on this file
- * descriptor will fail (returning -1) until the file descriptor is closed.
+ * descriptor will fail (returning -1) until the file descriptor is closed or
+ * the map is removed.
  *
  * When the file descriptor is closed, all remaining dirty pages of the map
  * will be flushed to disk and the map will be removed.
@@ -217,6 +265,14 @@ int unlink(char *name);
  */
 int mmap(int fileDescriptor, char *address);
 
+/**
+ * Remove the map that mmap() placed at address, flushing its remaining dirty
+ * pages to disk. The file descriptor stays open.
+ *
+ * Returns 0 on success, or -1 if no map starts at address.
+ */
+int munmap(char *address);
+
 /**
  * Attempt to initiate a new connection to the specified port on the specified
  * remote host, and return a new file descriptor referring to the connection.
@@ -2,44 +2,24 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.Comparator;
-import java.util.Iterator;
-import java.util.PriorityQueue;
-import java.util.Queue;
-
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a binary min-heap ordered by wake time, with
+ * threads that have the same wake time in the order they went to sleep. Each
+ * thread records its own wake time and position in the heap, so going to
+ * sleep allocates nothing, and <tt>cancel()</tt> takes O(log n) time.
+ *
+ * <p>
+ * If <tt>Alarm.tickless</tt> is set, the alarm sets the timer's one-shot alarm
+ * for the earliest wake time, so that threads wake exactly on time rather than
+ * on the next periodic interrupt, and that interrupt only causes a context
+ * switch if it woke a thread. The periodic interrupt, which still provides
+ * time-slicing, is stopped while no thread is ready to run.
  */
 public class Alarm {
-
-	private Queue<Wait> threadQ;
-
-	private static class Wait{
-		private KThread kthread;
-		private long waketime;
-
-		public void setKThread(KThread kthread){
-			this.kthread = kthread;
-		}
-
-		public KThread getKThread(){
-			return this.kthread;
-		}
-
-		public void setWakeTime(long waketime){
-			this.waketime = waketime;
-		}
-
-		public long getWakeTime(){
-			return this.waketime;
-		}
-	}
-	static Comparator<Wait> cmp = new Comparator<Wait>() {
-		public int compare(Wait w1, Wait w2) {
-			return (int)(w1.getWakeTime() - w2.getWakeTime());
-		}
-	};
 	/**
 	 * Allocate a new Alarm. Set the machine's timer interrupt handler to this
 	 * alarm's callback.
@@ -48,32 +28,93 @@ public class Alarm {
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
 	 */
 	public Alarm() {
-		this.threadQ = new PriorityQueue<Wait>(cmp);
+		tickless = Config.getBoolean("Alarm.tickless", false);
+
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
 				timerInterrupt();
 			}
 		});
+
+		if (tickless) {
+			Machine.timer().setAlarmHandler(new Runnable() {
+				public void run() {
+					alarmInterrupt();
+				}
+			});
+		}
 	}
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * periodically (approximately every 500 clock ticks). Wakes every thread
+	 * whose wake time has passed, then causes the current thread to yield,
+	 * forcing a context switch if there is another thread that should be run.
 	 */
 	public void timerInterrupt() {
-		long currentTime = Machine.timer().getTime();
-		Wait recent = this.threadQ.peek();
 		boolean intStatus = Machine.interrupt().disable();
-		while (recent != null && recent.getWakeTime() <= currentTime){
-			Wait now = this.threadQ.poll();
-			KThread ready = now.getKThread();
-			ready.ready();
-			recent = this.threadQ.peek();
-		}
+		wakeDue();
+		Machine.interrupt().restore(intStatus);
+
+		KThread.yield();
+	}
+
+	/**
+	 * The handler of the timer's one-shot alarm, in tickless mode. Wakes every
+	 * thread whose wake time has passed, sets the alarm for the next one, and
+	 * causes the current thread to yield if any thread was woken.
+	 */
+	private void alarmInterrupt() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean woken = wakeDue();
+		setTimerAlarm();
 		Machine.interrupt().restore(intStatus);
-		KThread.currentThread().yield();
+
+		if (woken)
+			KThread.yield();
+	}
+
+	/**
+	 * Wake every thread whose wake time has passed.
+	 *
+	 * @return <tt>true</tt> if any thread was woken.
+	 */
+	private boolean wakeDue() {
+		long currentTime = Machine.timer().getTime();
+		boolean woken = false;
+
+		while (numWaiting > 0 && waiting[0].alarmWakeTime <= currentTime) {
+			KThread thread = waiting[0];
+			remove(0);
+			thread.ready();
+			woken = true;
+		}
+
+		return woken;
+	}
+
+	/**
+	 * In tickless mode, set the timer's alarm for the earliest wake time. A
+	 * thread whose timer is cancelled leaves the alarm set; it then wakes
+	 * nobody, and is set again for the new earliest wake time.
+	 */
+	private void setTimerAlarm() {
+		if (tickless && numWaiting > 0
+				&& waiting[0].alarmWakeTime != Long.MAX_VALUE)
+			Machine.timer().setAlarm(waiting[0].alarmWakeTime);
+	}
+
+	/**
+	 * Called by <tt>KThread</tt> with interrupts disabled whenever it picks the
+	 * next thread to run. In tickless mode, stops the periodic timer interrupt
+	 * while the idle thread runs, since there is nothing to time-slice, and
+	 * restarts it otherwise.
+	 *
+	 * @param idle <tt>true</tt> if the idle thread was picked.
+	 */
+	void dispatching(boolean idle) {
+		if (tickless)
+			Machine.timer().setPeriodic(!idle);
 	}
 
 	/**
@@ -89,52 +130,143 @@ public class Alarm {
 	 * @see nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
-		if(x<=0){
+		if (x <= 0)
 			return;
-		}
-		// for now, cheat just to get something working (busy waiting is bad)
-//		long wakeTime = Machine.timer().getTime() + x;
-//		while (wakeTime > Machine.timer().getTime())
-//			KThread.yield();
-		long wakeTime = Machine.timer().getTime() + x;
-		Wait waitThread = new Wait();
-		waitThread.setKThread(KThread.currentThread());
-		waitThread.setWakeTime(wakeTime);
-
-		this.threadQ.add(waitThread);
+
 		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+		Lib.assertTrue(thread.alarmIndex == -1);
+
+		long time = Machine.timer().getTime();
+
+		// a wait too long to represent lasts forever
+		thread.alarmWakeTime = (x > Long.MAX_VALUE - time) ? Long.MAX_VALUE
+				: time + x;
+		thread.alarmSequence = nextSequence++;
+
+		insert(thread);
+		if (thread.alarmIndex == 0)
+			setTimerAlarm();
+
 		KThread.sleep();
-		Machine.interrupt().restore(intStatus);
 
+		Machine.interrupt().restore(intStatus);
 	}
 
-        /**
-	 * Cancel any timer set by <i>thread</i>, effectively waking
-	 * up the thread immediately (placing it in the scheduler
-	 * ready set) and returning true.  If <i>thread</i> has no
-	 * timer set, return false.
+	/**
+	 * Cancel any timer set by <i>thread</i>, effectively waking up the thread
+	 * immediately (placing it in the scheduler ready set) and returning true.
+	 * If <i>thread</i> has no timer set, return false.
 	 *
 	 * <p>
 	 * @param thread the thread whose timer should be cancelled.
 	 */
 	public boolean cancel(KThread thread) {
-//		Iterator iter = this.threadQ.iterator();
-//		while(iter.hasNext()){
-//			if(iter.next().)
-//		}
-//		Wait[] threadqueue = (Wait[]) threadQ.toArray();
-		for (Wait w:threadQ){
-			boolean intStatus = Machine.interrupt().disable();
-			if (w.getKThread()!=null && w.getKThread() == thread){
-				threadQ.remove(w);
-				Machine.interrupt().restore(intStatus);
-				return true;
-			}
-			Machine.interrupt().restore(intStatus);
+		boolean intStatus = Machine.interrupt().disable();
+
+		boolean set = (thread.alarmIndex != -1);
+		if (set) {
+			remove(thread.alarmIndex);
+			thread.ready();
 		}
-		return false;
+
+		Machine.interrupt().restore(intStatus);
+
+		return set;
+	}
+
+	/**
+	 * Add a thread to the heap, doubling the heap if it is full.
+	 */
+	private void insert(KThread thread) {
+		if (numWaiting == waiting.length) {
+			KThread[] old = waiting;
+			waiting = new KThread[old.length * 2];
+			System.arraycopy(old, 0, waiting, 0, old.length);
+		}
+
+		set(numWaiting++, thread);
+		siftUp(thread.alarmIndex);
+	}
+
+	/**
+	 * Remove the thread at the specified position of the heap.
+	 */
+	private void remove(int index) {
+		KThread thread = waiting[index];
+		KThread last = waiting[--numWaiting];
+		waiting[numWaiting] = null;
+		thread.alarmIndex = -1;
+
+		if (index < numWaiting) {
+			set(index, last);
+			siftDown(index);
+			siftUp(last.alarmIndex);
+		}
+	}
+
+	private void siftUp(int index) {
+		KThread thread = waiting[index];
+
+		while (index > 0) {
+			int parent = (index - 1) / 2;
+			if (!before(thread, waiting[parent]))
+				break;
+
+			set(index, waiting[parent]);
+			index = parent;
+		}
+
+		set(index, thread);
+	}
+
+	private void siftDown(int index) {
+		KThread thread = waiting[index];
+
+		while (true) {
+			int child = 2 * index + 1;
+			if (child >= numWaiting)
+				break;
+			if (child + 1 < numWaiting
+					&& before(waiting[child + 1], waiting[child]))
+				child++;
+			if (!before(waiting[child], thread))
+				break;
+
+			set(index, waiting[child]);
+			index = child;
+		}
+
+		set(index, thread);
+	}
+
+	private void set(int index, KThread thread) {
+		waiting[index] = thread;
+		thread.alarmIndex = index;
 	}
 
+	/**
+	 * Return <tt>true</tt> if <i>a</i> is to be woken before <i>b</i>.
+	 */
+	private static boolean before(KThread a, KThread b) {
+		if (a.alarmWakeTime != b.alarmWakeTime)
+			return a.alarmWakeTime < b.alarmWakeTime;
+
+		return a.alarmSequence < b.alarmSequence;
+	}
+
+	/** The heap of sleeping threads, in its first <tt>numWaiting</tt> slots. */
+	private KThread[] waiting = new KThread[16];
+
+	private int numWaiting = 0;
+
+	/** Gives each sleeping thread its place among equal wake times. */
+	private long nextSequence = 0;
+
+	/** <tt>true</tt> if the timer's alarm wakes sleeping threads. */
+	private boolean tickless;
+
 	// Add Alarm testing code to the Alarm class
 
 	public static void alarmTest1() {
@@ -149,14 +281,71 @@ public class Alarm {
 		}
 	}
 
-	// Implement more test methods here ...
+	/**
+	 * Put threads to sleep in a scrambled order of wait times, and check that
+	 * none wakes early and that they wake in order of wake time.
+	 */
+	public static void alarmTest2() {
+		final int[] waits = {7000, 1000, 5000, 3000, 11000, 9000};
+		final int[] order = new int[waits.length];
+		final int[] numWoken = {0};
+		KThread[] threads = new KThread[waits.length];
+
+		for (int i = 0; i < waits.length; i++) {
+			final int which = i;
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					long t0 = Machine.timer().getTime();
+					ThreadedKernel.alarm.waitUntil(waits[which]);
+					Lib.assertTrue(Machine.timer().getTime() >= t0
+							+ waits[which]);
+					order[numWoken[0]++] = which;
+				}
+			}).setName("alarmTest2 " + i);
+			threads[i].fork();
+		}
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		for (int i = 1; i < order.length; i++)
+			Lib.assertTrue(waits[order[i - 1]] < waits[order[i]]);
+
+		System.out.println ("alarmTest2: " + waits.length
+				+ " threads woke in order");
+	}
+
+	/**
+	 * Check that a wait too long to represent does not wrap around and wake
+	 * the thread at once, that <tt>cancel()</tt> wakes a sleeping thread, and
+	 * that it returns false for a thread that is not sleeping.
+	 */
+	public static void alarmTest3() {
+		final boolean[] woken = {false};
+		KThread sleeper = new KThread(new Runnable() {
+			public void run() {
+				ThreadedKernel.alarm.waitUntil(Long.MAX_VALUE);
+				woken[0] = true;
+			}
+		}).setName("alarmTest3");
+		sleeper.fork();
+
+		ThreadedKernel.alarm.waitUntil(5000);
+		Lib.assertTrue(!woken[0]);
+
+		Lib.assertTrue(ThreadedKernel.alarm.cancel(sleeper));
+		sleeper.join();
+		Lib.assertTrue(woken[0]);
+		Lib.assertTrue(!ThreadedKernel.alarm.cancel(sleeper));
+
+		System.out.println ("alarmTest3: cancelled a thread waiting forever");
+	}
 
 	// Invoke Alarm.selfTest() from ThreadedKernel.selfTest()
 	public static void selfTest() {
 		alarmTest1();
-
-		// Invoke your other test methods here ...
-
+		alarmTest2();
+		alarmTest3();
 	}
 }
 
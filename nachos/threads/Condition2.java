@@ -63,9 +63,10 @@ public class Condition2 {
 			return;
 		}
 		KThread kt = waitQueue.removeFirst();
-		kt.ready();
 
-		ThreadedKernel.alarm.cancel(kt);
+		// a thread in sleepFor() is woken by cancelling its timer
+		if (!ThreadedKernel.alarm.cancel(kt))
+			kt.ready();
 
 		Machine.interrupt().restore(intStatus);
 	}
@@ -338,8 +338,15 @@ public class KThread {
 	 */
 	private static void runNextThread() {
 		KThread nextThread = readyQueue.nextThread();
-		if (nextThread == null)
+		if (nextThread == null) {
+			// only an interrupt can make a thread ready, so skip the ticks
+			// the idle thread would spend waiting for one
+			Machine.interrupt().idle();
 			nextThread = idleThread;
+		}
+
+		if (ThreadedKernel.alarm != null)
+			ThreadedKernel.alarm.dispatching(nextThread == idleThread);
 
 		nextThread.run();
 	}
@@ -662,6 +669,18 @@ public class KThread {
 	 */
 	public Object schedulingState = null;
 
+	/** The time at which <tt>Alarm</tt> is to wake this thread. */
+	long alarmWakeTime;
+
+	/** Orders threads with the same <tt>alarmWakeTime</tt>. */
+	long alarmSequence;
+
+	/**
+	 * The position of this thread in <tt>Alarm</tt>'s heap, or -1 if the
+	 * thread is not waiting on the alarm.
+	 */
+	int alarmIndex = -1;
+
 	private static final int statusNew = 0;
 
 	private static final int statusReady = 1;
@@ -676,6 +695,14 @@ public class KThread {
 		return status;
 	}
 
+	/**
+	 * Return <tt>true</tt> if this thread is ready, meaning that it is on, or
+	 * being added to, the ready queue.
+	 */
+	boolean isReady() {
+		return status == statusReady;
+	}
+
 	/**
 	 * The status of this thread. A thread can either be new (not yet forked),
 	 * ready (on the ready queue but not running), running, or blocked (not on
@@ -2,9 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.ArrayList;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -41,7 +39,505 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getLotteryState(thread).getPriority();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getLotteryState(thread).getEffectivePriority();
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getLotteryState(thread).setPriority(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Test the queues of a private lottery scheduler, using threads that are
+	 * never forked: that every waiting thread is drawn exactly once and the
+	 * ticket total stays right as the queue grows and shrinks, that threads
+	 * win in proportion to their tickets, and that tickets are transferred
+	 * along a chain of owners.
+	 */
+	public static void selfTest() {
+		LotteryScheduler scheduler = new LotteryScheduler();
+		boolean intStatus = Machine.interrupt().disable();
+
+		// more threads than the initial number of slots
+		KThread[] threads = new KThread[initialSlots * 2 + 4];
+		LotteryQueue queue = (LotteryQueue) scheduler.newThreadQueue(false);
+		long total = 0;
+
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread().setName("ls " + i);
+			scheduler.setPriority(threads[i], i + 1);
+			queue.waitForAccess(threads[i]);
+			total += i + 1;
+		}
+		Lib.assertTrue(queue.getTotalTickets() == total);
+
+		boolean[] drawn = new boolean[threads.length];
+		for (int i = 0; i < threads.length; i++) {
+			KThread thread = queue.nextThread();
+			int which = scheduler.getPriority(thread) - 1;
+			Lib.assertTrue(threads[which] == thread && !drawn[which]);
+			drawn[which] = true;
+
+			total -= which + 1;
+			Lib.assertTrue(queue.getTotalTickets() == total);
+		}
+		Lib.assertTrue(queue.nextThread() == null);
+
+		// a thread with 99 of 100 tickets should almost always win
+		KThread rich = new KThread().setName("rich");
+		KThread poor = new KThread().setName("poor");
+		scheduler.setPriority(rich, 99);
+
+		int richWins = 0;
+		for (int i = 0; i < 1000; i++) {
+			queue.waitForAccess(poor);
+			queue.waitForAccess(rich);
+			if (queue.nextThread() == rich)
+				richWins++;
+			queue.nextThread();
+		}
+		Lib.assertTrue(richWins > 900);
+
+		// owner holds a, and waits for b, which holder holds
+		KThread owner = new KThread().setName("owner");
+		KThread holder = new KThread().setName("holder");
+		KThread five = new KThread().setName("five");
+		KThread ten = new KThread().setName("ten");
+		scheduler.setPriority(holder, 2);
+		scheduler.setPriority(five, 5);
+		scheduler.setPriority(ten, 10);
+
+		ThreadQueue a = scheduler.newThreadQueue(true);
+		ThreadQueue b = scheduler.newThreadQueue(true);
+		a.acquire(owner);
+		b.acquire(holder);
+		a.waitForAccess(five);
+		a.waitForAccess(ten);
+		Lib.assertTrue(scheduler.getEffectivePriority(owner) == 16);
+
+		b.waitForAccess(owner);
+		Lib.assertTrue(scheduler.getEffectivePriority(holder) == 18);
+
+		scheduler.setPriority(ten, 20);
+		Lib.assertTrue(scheduler.getEffectivePriority(owner) == 26
+				&& scheduler.getEffectivePriority(holder) == 28);
+
+		// owner gives up a; the winner now receives the loser's tickets
+		KThread winner = a.nextThread();
+		Lib.assertTrue(winner == five || winner == ten);
+		Lib.assertTrue(scheduler.getEffectivePriority(winner) == 25
+				&& scheduler.getEffectivePriority(owner) == 1
+				&& scheduler.getEffectivePriority(holder) == 3);
+
+		Lib.assertTrue(b.nextThread() == owner);
+		Lib.assertTrue(scheduler.getEffectivePriority(holder) == 2);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the lottery state of the specified thread.
+	 * 
+	 * @param thread the thread whose lottery state to return.
+	 * @return the lottery state of the specified thread.
+	 */
+	protected LotteryState getLotteryState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryState(thread);
+
+		return (LotteryState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 * 
+	 * <p>
+	 * Each waiting thread occupies a slot, and a Fenwick tree over the slots
+	 * holds prefix sums of their tickets. Drawing the winner, adding or
+	 * removing a thread, and changing a thread's tickets all take O(log n)
+	 * time. Freed slots are reused before the tree grows.
+	 */
+	protected class LotteryQueue extends ThreadQueue {
+		LotteryQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			// the current owner gives up access whether or not anyone wins
+			if (owner != null)
+				owner.release(this);
+
+			if (numWaiting == 0)
+				return null;
+
+			LotteryState winner = draw();
+
+			remove(winner);
+			winner.waitingOn = null;
+			winner.acquire(this);
+
+			return winner.thread;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < numSlots; i++) {
+				if (slots[i] != null)
+					System.out.print(slots[i].thread + " ");
+			}
+		}
+
+		/**
+		 * Return the total number of tickets held by waiting threads.
+		 * 
+		 * @return the sum of the effective tickets of the waiting threads.
+		 */
+		long getTotalTickets() {
+			return totalTickets;
+		}
+
+		void add(LotteryState state) {
+			int slot;
+			if (numFree > 0) {
+				slot = freeSlots[--numFree];
+			}
+			else {
+				if (numSlots == slots.length)
+					grow();
+				slot = numSlots++;
+			}
+
+			slots[slot] = state;
+			state.slot = slot;
+			numWaiting++;
+
+			update(slot, state.effectiveTickets);
+		}
+
+		void remove(LotteryState state) {
+			int slot = state.slot;
+			Lib.assertTrue(slots[slot] == state);
+
+			update(slot, -state.effectiveTickets);
+
+			slots[slot] = null;
+			freeSlots[numFree++] = slot;
+			numWaiting--;
+		}
+
+		/**
+		 * Add <tt>delta</tt> tickets to the thread in the specified slot.
+		 */
+		void update(int slot, long delta) {
+			for (int i = slot + 1; i < tree.length; i += i & -i)
+				tree[i] += delta;
+
+			totalTickets += delta;
+		}
+
+		/**
+		 * Pick a random ticket, and return the thread that holds it.
+		 */
+		private LotteryState draw() {
+			Lib.assertTrue(totalTickets > 0);
+
+			long ticket;
+			if (totalTickets <= Integer.MAX_VALUE)
+				ticket = Lib.random((int) totalTickets);
+			else
+				ticket = Math.min((long) (Lib.random() * totalTickets),
+						totalTickets - 1);
+
+			// find the first slot whose prefix sum exceeds the ticket
+			int position = 0;
+			int step = Integer.highestOneBit(tree.length - 1);
+			for (; step > 0; step >>= 1) {
+				if (position + step < tree.length
+						&& tree[position + step] <= ticket) {
+					position += step;
+					ticket -= tree[position];
+				}
+			}
+
+			return slots[position];
+		}
+
+		/**
+		 * Double the number of slots, rebuilding the tree.
+		 */
+		private void grow() {
+			LotteryState[] oldSlots = slots;
+
+			slots = new LotteryState[oldSlots.length * 2];
+			System.arraycopy(oldSlots, 0, slots, 0, oldSlots.length);
+
+			int[] oldFree = freeSlots;
+			freeSlots = new int[slots.length];
+			System.arraycopy(oldFree, 0, freeSlots, 0, numFree);
+
+			tree = new long[slots.length + 1];
+			for (int i = 1; i < tree.length; i++) {
+				if (slots[i - 1] != null)
+					tree[i] += slots[i - 1].effectiveTickets;
+
+				int parent = i + (i & -i);
+				if (parent < tree.length)
+					tree[parent] += tree[i];
+			}
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/**
+		 * The thread that currently has access, if this queue transfers
+		 * tickets.
+		 */
+		LotteryState owner = null;
+
+		private LotteryState[] slots = new LotteryState[initialSlots];
+
+		/** Fenwick tree of tickets, indexed by slot + 1. */
+		private long[] tree = new long[initialSlots + 1];
+
+		/** Stack of unoccupied slots below <tt>numSlots</tt>. */
+		private int[] freeSlots = new int[initialSlots];
+
+		private int numFree = 0, numSlots = 0, numWaiting = 0;
+
+		private long totalTickets = 0;
+	}
+
+	private static final int initialSlots = 8;
+
+	/** Incremented for every change that is passed along a donation chain. */
+	private long numPropagations = 0;
+
+	/**
+	 * The scheduling state of a thread under lottery scheduling: its own
+	 * tickets, its effective tickets (its own plus those of every thread
+	 * waiting on a resource it holds), the resources it holds and the queue it
+	 * is waiting on.
+	 * 
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class LotteryState {
+		/**
+		 * Allocate a new <tt>LotteryState</tt> object and associate it with
+		 * the specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryState(KThread thread) {
+			this.thread = thread;
+
+			priority = priorityDefault;
+			effectiveTickets = priority;
+		}
+
+		/**
+		 * Return the number of tickets of the associated thread.
+		 * 
+		 * @return the number of tickets of the associated thread.
+		 */
+		public int getPriority() {
+			return priority;
+		}
+
+		/**
+		 * Return the effective number of tickets of the associated thread,
+		 * limited to <tt>priorityMaximum</tt>.
+		 * 
+		 * @return the effective number of tickets of the associated thread.
+		 */
+		public int getEffectivePriority() {
+			return (int) Math.min(effectiveTickets, priorityMaximum);
+		}
+
+		/**
+		 * Set the number of tickets of the associated thread.
+		 * 
+		 * @param priority the new number of tickets.
+		 */
+		public void setPriority(int priority) {
+			long delta = (long) priority - this.priority;
+
+			this.priority = priority;
+
+			changeTickets(delta);
+		}
+
+		/**
+		 * Called when the associated thread starts waiting on the specified
+		 * queue.
+		 * 
+		 * @param waitQueue the queue that the associated thread is now waiting
+		 * on.
+		 */
+		public void waitForAccess(LotteryQueue waitQueue) {
+			Lib.assertTrue(waitingOn == null);
+
+			waitingOn = waitQueue;
+			waitQueue.add(this);
+
+			if (waitQueue.transferPriority && waitQueue.owner != null)
+				waitQueue.owner.changeTickets(effectiveTickets);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever is
+		 * guarded by <tt>waitQueue</tt>.
+		 * 
+		 * @param waitQueue the queue whose resource was acquired.
+		 */
+		public void acquire(LotteryQueue waitQueue) {
+			if (!waitQueue.transferPriority)
+				return;
+
+			if (waitQueue.owner != null)
+				waitQueue.owner.release(waitQueue);
+
+			waitQueue.owner = this;
+			held.add(waitQueue);
+
+			changeTickets(waitQueue.getTotalTickets());
+		}
+
+		/**
+		 * Called when the associated thread gives up access to whatever is
+		 * guarded by <tt>waitQueue</tt>.
+		 * 
+		 * @param waitQueue the queue whose resource was released.
+		 */
+		void release(LotteryQueue waitQueue) {
+			Lib.assertTrue(waitQueue.owner == this);
+
+			waitQueue.owner = null;
+			held.remove(waitQueue);
+
+			changeTickets(-waitQueue.getTotalTickets());
+		}
+
+		/**
+		 * Add <tt>delta</tt> to the effective tickets of the associated thread,
+		 * and of each thread it is (indirectly) waiting on. A deadlock can
+		 * make the chain circular, so each thread is visited at most once.
+		 */
+		void changeTickets(long delta) {
+			long visit = ++numPropagations;
+			LotteryState state = this;
+
+			while (delta != 0 && state != null && state.lastVisit != visit) {
+				state.lastVisit = visit;
+				state.effectiveTickets += delta;
+
+				LotteryQueue queue = state.waitingOn;
+				if (queue == null)
+					return;
+
+				queue.update(state.slot, delta);
+
+				state = queue.transferPriority ? queue.owner : null;
+			}
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The number of tickets of the associated thread. */
+		protected int priority;
+
+		/** The effective number of tickets of the associated thread. */
+		protected long effectiveTickets;
+
+		/** The queue the associated thread is waiting on, if any. */
+		LotteryQueue waitingOn = null;
+
+		/** The slot of <tt>waitingOn</tt> holding this thread. */
+		int slot;
+
+		/** The ticket-transferring queues whose resources this thread owns. */
+		ArrayList<LotteryQueue> held = new ArrayList<LotteryQueue>();
+
+		private long lastVisit = 0;
 	}
 }
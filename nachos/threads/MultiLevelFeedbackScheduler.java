@@ -0,0 +1,396 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Iterator;
+
+/**
+ * A multi-level feedback queue scheduler. Every thread is at one of several
+ * levels; a queue always gives access to a thread at the highest level (level
+ * 0), and threads at the same level get access round-robin.
+ *
+ * <p>
+ * A thread's level follows its behavior. A thread that runs for its level's
+ * whole quantum without blocking (typically being preempted by
+ * <tt>Alarm.timerInterrupt()</tt>) drops a level, and the quantum doubles at
+ * each level. A thread that blocks (on a <tt>Lock</tt>, a <tt>Semaphore</tt>,
+ * the console, or in <tt>Alarm.waitUntil()</tt>) rises a level when it is
+ * woken. Every <tt>boostInterval</tt> ticks all threads are moved back to
+ * level 0, so CPU-bound threads cannot starve. The ready queue notices when a
+ * boost is due; every other queue applies it the next time a thread is added
+ * to it or removed from it.
+ *
+ * <p>
+ * The number of levels, the level 0 quantum, and the boost interval are read
+ * from <tt>MultiLevelFeedbackScheduler.numLevels</tt>,
+ * <tt>MultiLevelFeedbackScheduler.quantum</tt>, and
+ * <tt>MultiLevelFeedbackScheduler.boostInterval</tt>.
+ */
+public class MultiLevelFeedbackScheduler extends Scheduler {
+	/**
+	 * Allocate a new multi-level feedback queue scheduler.
+	 */
+	public MultiLevelFeedbackScheduler() {
+		numLevels = Config.getInteger("MultiLevelFeedbackScheduler.numLevels",
+				3);
+		quantum = Config.getInteger("MultiLevelFeedbackScheduler.quantum",
+				1000);
+		boostInterval = Config.getInteger(
+				"MultiLevelFeedbackScheduler.boostInterval", 20000);
+
+		Lib.assertTrue(numLevels > 0 && quantum > 0 && boostInterval > 0);
+	}
+
+	/**
+	 * Allocate a new multi-level thread queue.
+	 *
+	 * @param transferPriority ignored. Levels are never donated.
+	 * @return a new multi-level thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new MultiLevelQueue();
+	}
+
+	/**
+	 * Return the level of the specified thread, 0 being the highest.
+	 *
+	 * @param thread the thread whose level to return.
+	 * @return the level of the specified thread.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getLevelState(thread).level;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected LevelState getLevelState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LevelState();
+
+		LevelState state = (LevelState) thread.schedulingState;
+
+		if (state.boostCount != boostCount) {
+			state.boostCount = boostCount;
+			state.level = 0;
+			state.used = 0;
+		}
+
+		return state;
+	}
+
+	/**
+	 * Return the number of ticks a thread may run at the specified level
+	 * before it is moved down.
+	 */
+	private long getQuantum(int level) {
+		return (long) quantum << level;
+	}
+
+	/**
+	 * Charge the specified thread for the time since it was last charged,
+	 * and move it down a level if it has used up its quantum.
+	 */
+	private void charge(KThread thread, LevelState state) {
+		long time = Machine.timer().getTime();
+
+		state.used += time - state.chargeTime;
+		state.chargeTime = time;
+
+		if (state.used >= getQuantum(state.level)) {
+			if (state.level < numLevels - 1)
+				state.level++;
+			state.used = 0;
+		}
+	}
+
+	/**
+	 * Move a thread that was woken after blocking up a level, and start a new
+	 * quantum for it.
+	 */
+	private void promote(LevelState state) {
+		if (state.level > 0)
+			state.level--;
+		state.used = 0;
+		state.chargeTime = Machine.timer().getTime();
+	}
+
+	/**
+	 * Start a boost if it is time for one. Queues apply the boost lazily.
+	 */
+	private void checkBoost() {
+		long time = Machine.timer().getTime();
+		if (time >= nextBoostTime) {
+			nextBoostTime = time + boostInterval;
+			boostCount++;
+		}
+	}
+
+	/**
+	 * Test the queues of a private multi-level feedback scheduler, using
+	 * threads that are never forked: round-robin order within a level, moving
+	 * down a level after using a whole quantum, moving up a level when woken,
+	 * and a boost moving every thread back to level 0.
+	 */
+	public static void selfTest() {
+		MultiLevelFeedbackScheduler scheduler =
+				new MultiLevelFeedbackScheduler();
+		boolean intStatus = Machine.interrupt().disable();
+
+		// interrupts are disabled, so the time stands still
+		long time = Machine.timer().getTime();
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+
+		// round-robin within a level
+		KThread[] threads = new KThread[3];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread().setName("mlfq " + i);
+			queue.waitForAccess(threads[i]);
+		}
+		for (int round = 0; round < 2; round++) {
+			for (int i = 0; i < threads.length; i++) {
+				KThread thread = queue.nextThread();
+				Lib.assertTrue(thread == threads[i]
+						&& scheduler.getPriority(thread) == 0);
+				queue.waitForAccess(thread);
+			}
+		}
+		for (int i = 0; i < threads.length; i++)
+			queue.nextThread();
+		Lib.assertTrue(queue.nextThread() == null);
+
+		// a thread keeps its level until it has used the level's whole
+		// quantum, which doubles at each level, over any number of charges
+		KThread hog = new KThread().setName("hog");
+		LevelState state = scheduler.getLevelState(hog);
+		for (int level = 0; level < scheduler.numLevels - 1; level++) {
+			state.chargeTime = time - (scheduler.getQuantum(level) - 1);
+			scheduler.charge(hog, state);
+			Lib.assertTrue(state.level == level);
+
+			state.chargeTime = time - 1;
+			scheduler.charge(hog, state);
+			Lib.assertTrue(state.level == level + 1 && state.used == 0);
+		}
+
+		// the lowest level is as far down as a thread goes
+		state.chargeTime = time - scheduler.getQuantum(state.level);
+		scheduler.charge(hog, state);
+		Lib.assertTrue(state.level == scheduler.numLevels - 1);
+
+		// a woken thread rises a level, ahead of threads still below it
+		KThread sleeper = new KThread().setName("sleeper");
+		LevelState sleeperState = scheduler.getLevelState(sleeper);
+		sleeperState.level = scheduler.numLevels - 1;
+		sleeperState.used = 1;
+		scheduler.promote(sleeperState);
+		Lib.assertTrue(sleeperState.level == Math.max(0,
+				scheduler.numLevels - 2) && sleeperState.used == 0);
+
+		queue.waitForAccess(hog);
+		queue.waitForAccess(sleeper);
+		if (scheduler.numLevels > 1)
+			Lib.assertTrue(queue.nextThread() == sleeper);
+		else
+			Lib.assertTrue(queue.nextThread() == hog);
+		queue.nextThread();
+
+		// a boost moves the waiting threads to level 0, keeping their order,
+		// and the boost interval is respected
+		KThread top = new KThread().setName("top");
+		queue.waitForAccess(hog);
+		queue.waitForAccess(top);
+
+		scheduler.nextBoostTime = time + 1;
+		scheduler.checkBoost();
+		Lib.assertTrue(scheduler.getPriority(hog) == scheduler.numLevels - 1);
+
+		scheduler.nextBoostTime = time;
+		scheduler.checkBoost();
+		Lib.assertTrue(scheduler.nextBoostTime == time
+				+ scheduler.boostInterval);
+
+		KThread first = (scheduler.numLevels > 1) ? top : hog;
+		KThread second = (first == top) ? hog : top;
+		Lib.assertTrue(queue.nextThread() == first
+				&& scheduler.getPriority(first) == 0);
+		queue.waitForAccess(first);
+		Lib.assertTrue(queue.nextThread() == second
+				&& scheduler.getPriority(second) == 0);
+		Lib.assertTrue(queue.nextThread() == first);
+		Lib.assertTrue(scheduler.getPriority(sleeper) == 0);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * The scheduling state of a thread.
+	 */
+	protected class LevelState {
+		/** The level of the thread, 0 being the highest. */
+		int level = 0;
+
+		/** The number of ticks the thread has run at its current level. */
+		long used = 0;
+
+		/** The time the thread was last charged for running. */
+		long chargeTime = Machine.timer().getTime();
+
+		/** The value of <tt>boostCount</tt> when the level was last checked. */
+		int boostCount = MultiLevelFeedbackScheduler.this.boostCount;
+	}
+
+	private class MultiLevelQueue extends ThreadQueue {
+		MultiLevelQueue() {
+			levels = new ArrayList<LinkedList<KThread>>(numLevels);
+			for (int i = 0; i < numLevels; i++)
+				levels.add(new LinkedList<KThread>());
+		}
+
+		/**
+		 * Add a thread to the end of the list for its level. If the thread is
+		 * being made ready, this is where its level is adjusted: down if it
+		 * is giving up the CPU after using its quantum, up if it was woken by
+		 * another thread after blocking.
+		 *
+		 * @param thread the thread to append to the queue.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			applyBoost();
+
+			LevelState state = getLevelState(thread);
+
+			if (thread.isReady()) {
+				readyQueue = true;
+
+				if (thread == KThread.currentThread())
+					charge(thread, state);
+				else
+					promote(state);
+			}
+
+			levels.get(state.level).add(thread);
+			size++;
+		}
+
+		/**
+		 * Remove the first thread at the highest non-empty level. For the
+		 * ready queue, the current thread is giving up the CPU, so charge it
+		 * for the time it ran, and boost every thread if it is time.
+		 *
+		 * @return the first thread at the highest level, or <tt>null</tt> if
+		 * the queue is empty.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (readyQueue) {
+				KThread current = KThread.currentThread();
+				charge(current, getLevelState(current));
+
+				checkBoost();
+			}
+
+			applyBoost();
+
+			if (size == 0)
+				return null;
+
+			for (int level = 0; level < numLevels; level++) {
+				if (!levels.get(level).isEmpty()) {
+					size--;
+
+					KThread thread = levels.get(level).removeFirst();
+					getLevelState(thread).chargeTime = Machine.timer()
+							.getTime();
+					return thread;
+				}
+			}
+
+			Lib.assertNotReached();
+			return null;
+		}
+
+		/**
+		 * If there has been a boost since this queue last checked, move every
+		 * thread in this queue to level 0, keeping the threads at higher
+		 * levels ahead of those at lower levels.
+		 */
+		private void applyBoost() {
+			if (boostCount == MultiLevelFeedbackScheduler.this.boostCount)
+				return;
+
+			boostCount = MultiLevelFeedbackScheduler.this.boostCount;
+
+			for (int level = 1; level < numLevels; level++) {
+				levels.get(0).addAll(levels.get(level));
+				levels.get(level).clear();
+			}
+
+			for (Iterator<KThread> i = levels.get(0).iterator(); i.hasNext();)
+				getLevelState(i.next());
+		}
+
+		/**
+		 * The specified thread has received exclusive access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+		 * threads are waiting for access.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(size == 0);
+		}
+
+		/**
+		 * Print out the contents of the queue, highest level first.
+		 */
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int level = 0; level < numLevels; level++) {
+				for (Iterator<KThread> i = levels.get(level).iterator(); i
+						.hasNext();)
+					System.out.print(i.next() + "(" + level + ") ");
+			}
+		}
+
+		/** The waiting threads at each level. */
+		private ArrayList<LinkedList<KThread>> levels;
+
+		/** The value of <tt>boostCount</tt> when this queue last checked. */
+		private int boostCount = MultiLevelFeedbackScheduler.this.boostCount;
+
+		private int size = 0;
+
+		/** <tt>true</tt> if this is the ready queue. */
+		private boolean readyQueue = false;
+	}
+
+	private int numLevels;
+
+	/** The number of ticks a thread may run at level 0. */
+	private int quantum;
+
+	/** The number of ticks between moving every thread back to level 0. */
+	private long boostInterval;
+
+	/** The time of the next boost. */
+	private long nextBoostTime = 0;
+
+	/** The number of boosts so far. */
+	private int boostCount = 0;
+}
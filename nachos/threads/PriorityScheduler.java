@@ -2,9 +2,10 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.TreeSet;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -97,6 +98,76 @@ public class PriorityScheduler extends Scheduler {
 		return ret;
 	}
 
+	/**
+	 * Test the queues of a private priority scheduler, using threads that are
+	 * never forked: the order in which threads are dequeued, donation along a
+	 * chain of owners, and the end of a donation when a resource changes
+	 * hands.
+	 */
+	public static void selfTest() {
+		PriorityScheduler scheduler = new PriorityScheduler();
+		boolean intStatus = Machine.interrupt().disable();
+
+		// highest priority first, longest waiting first within a priority
+		int[] priorities = {3, 1, 3, 7, 1};
+		int[] expected = {3, 0, 2, 1, 4};
+		KThread[] threads = new KThread[priorities.length];
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread().setName("ps " + i);
+			scheduler.setPriority(threads[i], priorities[i]);
+			queue.waitForAccess(threads[i]);
+		}
+		for (int i = 0; i < expected.length; i++)
+			Lib.assertTrue(queue.nextThread() == threads[expected[i]]);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		// low holds a, mid holds b and waits for a, high waits for b
+		KThread low = new KThread().setName("low");
+		KThread mid = new KThread().setName("mid");
+		KThread high = new KThread().setName("high");
+		scheduler.setPriority(low, 1);
+		scheduler.setPriority(mid, 2);
+		scheduler.setPriority(high, 5);
+
+		ThreadQueue a = scheduler.newThreadQueue(true);
+		ThreadQueue b = scheduler.newThreadQueue(true);
+		a.acquire(low);
+		b.acquire(mid);
+		a.waitForAccess(mid);
+		b.waitForAccess(high);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 5
+				&& scheduler.getEffectivePriority(mid) == 5);
+
+		// a change in priority is passed down the chain
+		scheduler.setPriority(high, 0);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 2
+				&& scheduler.getEffectivePriority(mid) == 2);
+		scheduler.setPriority(high, 6);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 6);
+
+		// a queue that does not transfer priority donates nothing
+		ThreadQueue c = scheduler.newThreadQueue(false);
+		KThread top = new KThread().setName("top");
+		scheduler.setPriority(top, 7);
+		c.acquire(low);
+		c.waitForAccess(top);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 6);
+
+		// low gives up a, so only mid receives the donation
+		Lib.assertTrue(a.nextThread() == mid);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 1
+				&& scheduler.getEffectivePriority(mid) == 6);
+		Lib.assertTrue(b.nextThread() == high);
+		Lib.assertTrue(scheduler.getEffectivePriority(mid) == 2);
+		Lib.assertTrue(a.nextThread() == null && b.nextThread() == null);
+		Lib.assertTrue(scheduler.getEffectivePriority(mid) == 2
+				&& scheduler.getEffectivePriority(high) == 6);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
 	/**
 	 * The default priority for a new thread. Do not change this value.
 	 */
@@ -127,10 +198,20 @@ public class PriorityScheduler extends Scheduler {
 
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * 
+	 * <p>
+	 * Waiting threads are kept in one bucket per effective priority, each
+	 * ordered by the time the thread started waiting, with a bit mask of the
+	 * non-empty buckets. The highest waiting priority, which is what the queue
+	 * donates to its owner, is therefore found in constant time.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
 			this.transferPriority = transferPriority;
+
+			buckets = new ArrayList<TreeSet<ThreadState>>(priorityMaximum + 1);
+			for (int i = 0; i <= priorityMaximum; i++)
+				buckets.add(new TreeSet<ThreadState>(waitOrder));
 		}
 
 		public void waitForAccess(KThread thread) {
@@ -145,7 +226,20 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
+
+			ThreadState next = pickNextThread();
+
+			if (next != null) {
+				remove(next);
+				next.waitingOn = null;
+				next.acquire(this);
+				return next.thread;
+			}
+
+			// nobody gets access, so the resource no longer has an owner
+			if (owner != null)
+				owner.release(this);
+
 			return null;
 		}
 
@@ -156,13 +250,49 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			if (nonEmpty == 0)
+				return null;
+
+			return buckets.get(getMaximumPriority()).first();
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int p = priorityMaximum; p >= priorityMinimum; p--) {
+				for (Iterator<ThreadState> i = buckets.get(p).iterator(); i
+						.hasNext();)
+					System.out.print(i.next().thread + " ");
+			}
+		}
+
+		/**
+		 * Return the highest effective priority of any waiting thread.
+		 * 
+		 * @return the highest priority of any waiting thread, or
+		 * <tt>priorityMinimum</tt> if no threads are waiting.
+		 */
+		int getMaximumPriority() {
+			if (nonEmpty == 0)
+				return priorityMinimum;
+
+			return 31 - Integer.numberOfLeadingZeros(nonEmpty);
+		}
+
+		void add(ThreadState state) {
+			int priority = state.effectivePriority;
+
+			state.queuedPriority = priority;
+			buckets.get(priority).add(state);
+			nonEmpty |= 1 << priority;
+		}
+
+		void remove(ThreadState state) {
+			int priority = state.queuedPriority;
+
+			buckets.get(priority).remove(state);
+			if (buckets.get(priority).isEmpty())
+				nonEmpty &= ~(1 << priority);
 		}
 
 		/**
@@ -170,13 +300,45 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/**
+		 * The thread that currently has access, if this queue transfers
+		 * priority.
+		 */
+		ThreadState owner = null;
+
+		/** Waiting threads, by effective priority. */
+		private ArrayList<TreeSet<ThreadState>> buckets;
+
+		/** Bit <i>p</i> is set if bucket <i>p</i> is not empty. */
+		private int nonEmpty = 0;
 	}
 
+	/**
+	 * Orders threads waiting at the same priority by how long they have been
+	 * waiting.
+	 */
+	private static final Comparator<ThreadState> waitOrder =
+			new Comparator<ThreadState>() {
+				public int compare(ThreadState s1, ThreadState s2) {
+					return Long.compare(s1.waitTime, s2.waitTime);
+				}
+			};
+
+	/** Incremented every time a thread starts waiting. */
+	private long numWaits = 0;
+
 	/**
 	 * The scheduling state of a thread. This should include the thread's
 	 * priority, its effective priority, any objects it owns, and the queue it's
 	 * waiting for, if any.
 	 * 
+	 * <p>
+	 * The effective priority is cached, and is only recomputed when something
+	 * it depends on changes. A change is passed along the chain of owners that
+	 * the thread is waiting on, stopping at the first thread whose effective
+	 * priority does not change.
+	 * 
 	 * @see nachos.threads.KThread#schedulingState
 	 */
 	protected class ThreadState {
@@ -207,8 +369,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +383,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -238,7 +399,14 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(waitingOn == null);
+
+			waitingOn = waitQueue;
+			waitTime = numWaits++;
+			waitQueue.add(this);
+
+			if (waitQueue.transferPriority && waitQueue.owner != null)
+				waitQueue.owner.updateEffectivePriority();
 		}
 
 		/**
@@ -252,13 +420,80 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			if (!waitQueue.transferPriority)
+				return;
+
+			if (waitQueue.owner != null)
+				waitQueue.owner.release(waitQueue);
+
+			waitQueue.owner = this;
+			held.add(waitQueue);
+
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Called when the associated thread no longer has access to whatever is
+		 * guarded by <tt>waitQueue</tt>, so it stops receiving its donation.
+		 * 
+		 * @param waitQueue the queue whose resource was given up.
+		 */
+		void release(PriorityQueue waitQueue) {
+			Lib.assertTrue(waitQueue.owner == this);
+
+			waitQueue.owner = null;
+			held.remove(waitQueue);
+
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Recompute the effective priority of the associated thread and, if it
+		 * changed, of the threads it is (indirectly) waiting on.
+		 */
+		void updateEffectivePriority() {
+			ThreadState state = this;
+
+			while (state != null) {
+				int effective = state.priority;
+				for (PriorityQueue queue : state.held)
+					effective = Math.max(effective, queue.getMaximumPriority());
+
+				if (effective == state.effectivePriority)
+					return;
+
+				state.effectivePriority = effective;
+
+				PriorityQueue queue = state.waitingOn;
+				if (queue == null)
+					return;
+
+				queue.remove(state);
+				queue.add(state);
+
+				state = queue.transferPriority ? queue.owner : null;
+			}
 		}
 
 		/** The thread with which this object is associated. */
 		protected KThread thread;
 
 		/** The priority of the associated thread. */
-		protected int priority;
+		protected int priority = -1;
+
+		/** The cached effective priority of the associated thread. */
+		protected int effectivePriority = -1;
+
+		/** The queue the associated thread is waiting on, if any. */
+		PriorityQueue waitingOn = null;
+
+		/** The bucket of <tt>waitingOn</tt> holding this thread. */
+		int queuedPriority;
+
+		/** When the associated thread started waiting on <tt>waitingOn</tt>. */
+		long waitTime;
+
+		/** The priority-transferring queues whose resources this thread owns. */
+		ArrayList<PriorityQueue> held = new ArrayList<PriorityQueue>();
 	}
 }
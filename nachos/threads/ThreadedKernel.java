@@ -46,9 +46,14 @@ public class ThreadedKernel extends Kernel {
 	 * here.
 	 */
 	public void selfTest() {
+		Interrupt.selfTest();
 		KThread.selfTest();
+		Alarm.selfTest();
 		Semaphore.selfTest();
 		SynchList.selfTest();
+		PriorityScheduler.selfTest();
+		LotteryScheduler.selfTest();
+		MultiLevelFeedbackScheduler.selfTest();
 		if (Machine.bank() != null) {
 			ElevatorBank.selfTest();
 		}
@@ -84,6 +89,8 @@ public class ThreadedKernel extends Kernel {
 
 	private static LotteryScheduler dummy3 = null;
 
+	private static MultiLevelFeedbackScheduler dummy10 = null;
+
 	private static Condition2 dummy4 = null;
 
         //private static Communicator dummy5 = null;
@@ -16,14 +16,22 @@ public class UserKernel extends ThreadedKernel {
 	}
 
 	/**
-	 * Initialize this kernel. Creates a synchronized console and sets the
-	 * processor's exception handler.
+	 * Initialize this kernel. Creates a synchronized console, puts every
+	 * physical page on the free list, and sets the processor's exception
+	 * handler.
 	 */
 	public void initialize(String[] args) {
 		super.initialize(args);
 
 		console = new SynchConsole(Machine.console());
 
+		int numPhysPages = Machine.processor().getNumPhysPages();
+
+		// hand out low pages first
+		freePages = new int[numPhysPages];
+		for (int ppn = numPhysPages - 1; ppn >= 0; ppn--)
+			freePages[numFreePages++] = ppn;
+
 		Machine.processor().setExceptionHandler(new Runnable() {
 			public void run() {
 				exceptionHandler();
@@ -50,6 +58,40 @@ public class UserKernel extends ThreadedKernel {
 		System.out.println("");
 	}
 
+	/**
+	 * Allocate a free physical page.
+	 * 
+	 * @return the physical page number of the page, or -1 if every page is in
+	 * use.
+	 */
+	public static int allocatePage() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int ppn = -1;
+		if (numFreePages > 0)
+			ppn = freePages[--numFreePages];
+
+		Machine.interrupt().restore(intStatus);
+
+		return ppn;
+	}
+
+	/**
+	 * Return a page returned by <tt>allocatePage()</tt> to the free list.
+	 * 
+	 * @param ppn the physical page number of the page.
+	 */
+	public static void freePage(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < freePages.length);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		Lib.assertTrue(numFreePages < freePages.length);
+		freePages[numFreePages++] = ppn;
+
+		Machine.interrupt().restore(intStatus);
+	}
+
 	/**
 	 * Returns the current process.
 	 * 
@@ -122,6 +164,11 @@ public class UserKernel extends ThreadedKernel {
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
+	/** The free physical pages, used as a stack. */
+	private static int[] freePages;
+
+	private static int numFreePages = 0;
+
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
 }
@@ -6,6 +6,7 @@ import nachos.userprog.*;
 import nachos.vm.*;
 
 import java.io.EOFException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -26,13 +27,20 @@ public class UserProcess {
 	 * Allocate a new process.
 	 */
 	public UserProcess() {
-		//added
-		filesTable = new HashMap<Integer,OpenFile>();
-		NameDesTable = new HashMap<String,Integer>();
-		int numPhysPages = Machine.processor().getNumPhysPages();
-		pageTable = new TranslationEntry[numPhysPages];
-		for (int i = 0; i < numPhysPages; i++)
-			pageTable[i] = new TranslationEntry(i, i, true, false, false, false);
+		int maxOpenFiles = Config.getInteger("UserProcess.maxOpenFiles", 256);
+		Lib.assertTrue(maxOpenFiles >= 2);
+
+		fileTable = new OpenFile[maxOpenFiles];
+		fileNames = new String[maxOpenFiles];
+
+		// standard input and standard output
+		fileTable[0] = UserKernel.console.openForReading();
+		fileTable[1] = UserKernel.console.openForWriting();
+
+		// the lowest free descriptor is on top
+		freeDescriptors = new int[maxOpenFiles];
+		for (int fd = maxOpenFiles - 1; fd >= 2; fd--)
+			freeDescriptors[numFreeDescriptors++] = fd;
 	}
 
 	/**
@@ -68,8 +76,21 @@ public class UserProcess {
 	 * @return <tt>true</tt> if the program was successfully executed.
 	 */
 	public boolean execute(String name, String[] args) {
-		if (!load(name, args))
+		if (!load(name, args)) {
+			// the process will never run, so give back its console
+			for (int fd = 0; fd < fileTable.length; fd++) {
+				if (fileTable[fd] != null)
+					closeDescriptor(fd);
+			}
+
 			return false;
+		}
+
+		// only processes that run are given an ID
+		boolean intStatus = Machine.interrupt().disable();
+		processID = nextProcessID++;
+		numProcesses++;
+		Machine.interrupt().restore(intStatus);
 
 		thread = new UThread(this);
 		thread.setName(name).fork();
@@ -152,12 +173,22 @@ public class UserProcess {
 
 		byte[] memory = Machine.processor().getMemory();
 
-		// for now, just assume that virtual addresses equal physical addresses
-		if (vaddr < 0 || vaddr >= memory.length)
-			return 0;
+		int amount = 0;
+		while (amount < length) {
+			int vpn = Processor.pageFromAddress(vaddr + amount);
+			int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+
+			int ppn = pinPage(vpn, false);
+			if (ppn == -1)
+				break;
 
-		int amount = Math.min(length, memory.length - vaddr);
-		System.arraycopy(memory, vaddr, data, offset, amount);
+			int count = Math.min(length - amount, pageSize - pageOffset);
+			System.arraycopy(memory, ppn * pageSize + pageOffset, data, offset
+					+ amount, count);
+			unpinPage(ppn);
+
+			amount += count;
+		}
 
 		return amount;
 	}
@@ -194,16 +225,135 @@ public class UserProcess {
 
 		byte[] memory = Machine.processor().getMemory();
 
-		// for now, just assume that virtual addresses equal physical addresses
-		if (vaddr < 0 || vaddr >= memory.length)
-			return 0;
+		int amount = 0;
+		while (amount < length) {
+			int vpn = Processor.pageFromAddress(vaddr + amount);
+			int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+
+			int ppn = pinPage(vpn, true);
+			if (ppn == -1)
+				break;
+
+			int count = Math.min(length - amount, pageSize - pageOffset);
+			System.arraycopy(data, offset + amount, memory, ppn * pageSize
+					+ pageOffset, count);
+			unpinPage(ppn);
+
+			amount += count;
+		}
+
+		return amount;
+	}
+
+	/**
+	 * Read from a file directly into this process's virtual memory, one page
+	 * at a time, without an intermediate buffer. Stops early at the end of the
+	 * file.
+	 * 
+	 * @param file the file to read.
+	 * @param vaddr the first byte of virtual memory to write.
+	 * @param length the number of bytes to read.
+	 * @return the number of bytes read, or -1 if the file could not be read or
+	 * part of the virtual memory cannot be written.
+	 */
+	protected int readFile(OpenFile file, int vaddr, int length) {
+		byte[] memory = Machine.processor().getMemory();
+
+		int amount = 0;
+		while (amount < length) {
+			int vpn = Processor.pageFromAddress(vaddr + amount);
+			int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+
+			int ppn = pinPage(vpn, true);
+			if (ppn == -1)
+				return -1;
+
+			int count = Math.min(length - amount, pageSize - pageOffset);
+			int read = file.read(memory, ppn * pageSize + pageOffset, count);
+			unpinPage(ppn);
+
+			if (read == -1)
+				return -1;
+
+			amount += read;
+			if (read < count)
+				break;
+		}
+
+		return amount;
+	}
 
-		int amount = Math.min(length, memory.length - vaddr);
-		System.arraycopy(data, offset, memory, vaddr, amount);
+	/**
+	 * Write to a file directly from this process's virtual memory, one page at
+	 * a time, without an intermediate buffer. Stops early if the file accepts
+	 * fewer bytes than were offered.
+	 * 
+	 * @param file the file to write.
+	 * @param vaddr the first byte of virtual memory to read.
+	 * @param length the number of bytes to write.
+	 * @return the number of bytes written, or -1 if the file could not be
+	 * written or part of the virtual memory cannot be read.
+	 */
+	protected int writeFile(OpenFile file, int vaddr, int length) {
+		byte[] memory = Machine.processor().getMemory();
+
+		int amount = 0;
+		while (amount < length) {
+			int vpn = Processor.pageFromAddress(vaddr + amount);
+			int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+
+			int ppn = pinPage(vpn, false);
+			if (ppn == -1)
+				return -1;
+
+			int count = Math.min(length - amount, pageSize - pageOffset);
+			int written = file.write(memory, ppn * pageSize + pageOffset, count);
+			unpinPage(ppn);
+
+			if (written == -1)
+				return -1;
+
+			amount += written;
+			if (written < count)
+				break;
+		}
 
 		return amount;
 	}
 
+	/**
+	 * Return the physical page holding the specified virtual page, and keep it
+	 * there until <tt>unpinPage()</tt> is called. Every page of a
+	 * <tt>UserProcess</tt> stays in memory, so there is nothing to pin.
+	 * 
+	 * @param vpn the virtual page.
+	 * @param writing <tt>true</tt> if the caller will modify the page.
+	 * @return the physical page holding the virtual page, or -1 if the page
+	 * does not exist or is read-only and <tt>writing</tt> is <tt>true</tt>.
+	 */
+	protected int pinPage(int vpn, boolean writing) {
+		if (vpn < 0 || vpn >= numPages)
+			return -1;
+
+		TranslationEntry entry = pageTable[vpn];
+		if (!entry.valid || (writing && entry.readOnly))
+			return -1;
+
+		entry.used = true;
+		if (writing)
+			entry.dirty = true;
+
+		return entry.ppn;
+	}
+
+	/**
+	 * Undo one call to <tt>pinPage()</tt>.
+	 * 
+	 * @param ppn the physical page returned by <tt>pinPage()</tt>.
+	 */
+	protected void unpinPage(int ppn) {
+	}
+
 	/**
 	 * Load the executable with the specified name into this process, and
 	 * prepare to pass it the specified arguments. Opens the executable, reads
@@ -299,13 +449,25 @@ public class UserProcess {
 	 * @return <tt>true</tt> if the sections were successfully loaded.
 	 */
 	protected boolean loadSections() {
-		if (numPages > Machine.processor().getNumPhysPages()) {
-			coff.close();
-			Lib.debug(dbgProcess, "\tinsufficient physical memory");
-			return false;
+		pageTable = new TranslationEntry[numPages];
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			int ppn = UserKernel.allocatePage();
+			if (ppn == -1) {
+				for (int i = 0; i < vpn; i++)
+					UserKernel.freePage(pageTable[i].ppn);
+				pageTable = null;
+
+				coff.close();
+				Lib.debug(dbgProcess, "\tinsufficient physical memory");
+				return false;
+			}
+
+			pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false,
+					false, false);
 		}
 
 		// load sections
+		int sectionPages = 0;
 		for (int s = 0; s < coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
 
@@ -315,11 +477,19 @@ public class UserProcess {
 			for (int i = 0; i < section.getLength(); i++) {
 				int vpn = section.getFirstVPN() + i;
 
-				// for now, just assume virtual addresses=physical addresses
-				section.loadPage(i, vpn);
+				pageTable[vpn].readOnly = section.isReadOnly();
+				section.loadPage(i, pageTable[vpn].ppn);
 			}
+
+			sectionPages += section.getLength();
 		}
 
+		// the stack and argument pages may hold another process's data
+		byte[] memory = Machine.processor().getMemory();
+		for (int vpn = sectionPages; vpn < numPages; vpn++)
+			Arrays.fill(memory, pageTable[vpn].ppn * pageSize,
+					(pageTable[vpn].ppn + 1) * pageSize, (byte) 0);
+
 		return true;
 	}
 
@@ -327,6 +497,12 @@ public class UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			UserKernel.freePage(pageTable[vpn].ppn);
+			pageTable[vpn].valid = false;
+		}
+
+		coff.close();
 	}
 
 	/**
@@ -353,9 +529,12 @@ public class UserProcess {
 	}
 
 	/**
-	 * Handle the halt() system call.
+	 * Handle the halt() system call. Only the root process may halt the
+	 * machine.
 	 */
 	private int handleHalt() {
+		if (processID != rootProcessID)
+			return -1;
 
 		Machine.halt();
 
@@ -373,81 +552,266 @@ public class UserProcess {
 		// can grade your implementation.
 
 		Lib.debug(dbgProcess, "UserProcess.handleExit (" + status + ")");
-		// for now, unconditionally terminate with just one process
-		Kernel.kernel.terminate();
 
+		exitStatus = status;
+		exitedNormally = true;
+
+		finishProcess();
+
+		Lib.assertNotReached();
 		return 0;
 	}
 
+	/**
+	 * Handle the exec() system call. Creates a child process running the
+	 * specified executable, whose name must end in <tt>.coff</tt>.
+	 * 
+	 * @param name the virtual address of the executable's name.
+	 * @param argc the number of arguments to pass to the child.
+	 * @param argv the virtual address of an array of <tt>argc</tt> pointers to
+	 * the arguments.
+	 * @return the process ID of the child, or -1 on error.
+	 */
+	private int handleExec(int name, int argc, int argv) {
+		String file = readVirtualMemoryString(name, maximumFileSize);
+		if (file == null || !file.endsWith(".coff") || argc < 0)
+			return -1;
+
+		String[] args = new String[argc];
+		byte[] pointer = new byte[4];
+		for (int i = 0; i < argc; i++) {
+			if (readVirtualMemory(argv + i * 4, pointer) != pointer.length)
+				return -1;
+
+			args[i] = readVirtualMemoryString(Lib.bytesToInt(pointer, 0),
+					maximumFileSize);
+			if (args[i] == null)
+				return -1;
+		}
+
+		UserProcess child = newUserProcess();
+
+		if (!child.execute(file, args))
+			return -1;
+
+		children.put(child.processID, child);
+
+		return child.processID;
+	}
+
+	/**
+	 * Handle the join() system call. Waits for a child of this process to
+	 * exit. A child can be joined only once.
+	 * 
+	 * @param pid the process ID of the child.
+	 * @param status the virtual address where the child's exit status is
+	 * stored, if it exited normally.
+	 * @return 1 if the child exited normally, 0 if it was killed by an
+	 * exception, or -1 if <tt>pid</tt> is not a child of this process.
+	 */
+	private int handleJoin(int pid, int status) {
+		UserProcess child = children.remove(pid);
+		if (child == null)
+			return -1;
+
+		child.exited.P();
+
+		if (!child.exitedNormally)
+			return 0;
+
+		byte[] statusBytes = Lib.bytesFromInt(child.exitStatus);
+		if (writeVirtualMemory(status, statusBytes) != statusBytes.length)
+			return -1;
+
+		return 1;
+	}
+
+	/**
+	 * Release every resource held by this process, wake a parent waiting to
+	 * join it, and finish its thread. The last process to finish terminates
+	 * the kernel. Never returns.
+	 */
+	private void finishProcess() {
+		for (int fd = 0; fd < fileTable.length; fd++) {
+			if (fileTable[fd] != null)
+				closeDescriptor(fd);
+		}
+
+		unloadSections();
+
+		children.clear();
+
+		exited.V();
+
+		boolean intStatus = Machine.interrupt().disable();
+		boolean last = (--numProcesses == 0);
+		Machine.interrupt().restore(intStatus);
+
+		if (last)
+			Kernel.kernel.terminate();
+
+		KThread.finish();
+	}
+
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallReadv = 13, syscallWritev = 14;
 	
-	//added:
-	private static int maximumFile = 16;
-	private HashMap<Integer, OpenFile> filesTable;
-	private HashMap<String, Integer> NameDesTable;
 	private static int maximumFileSize = 256;
-	private static int bufferSize = 0x400;
 
-	private int handleCreat(int name){
-		for (int index = 2; index < maximumFile; index ++) {
-			//check if the file has open or not.
-			if (!filesTable.containsKey(index)) {
-				String file = readVirtualMemoryString(name, maximumFileSize);
-				//handle the exception before the file is create
-				if (file == null){ //return -1 if the filename is null
-					return -1; 
-				}
-				//return -1 if the file is out of range
-				if (file.length() > maximumFileSize){
-					return -1;
-				}
-				
-				OpenFile cfile = ThreadedKernel.fileSystem.open(file, true);
-				//return -1 if the file doesn't exist
-				if (cfile == null){
-					return -1;
-				}else {
-					//file does exist
-					filesTable.put(index, cfile);
-					NameDesTable.put(file, index); //for unlink later use.
-					//nameFdTable.put(fileName, fd);
-					//System.out.println(fileName + "is created/opened successfully. The fd is " + fd);
-					return index;
-				}
-			}
+	/** The most buffers readv() and writev() accept. */
+	private static final int maximumIovecs = 16;
+
+	/** The size of a <tt>struct iovec</tt> in user memory. */
+	private static final int iovecSize = 8;
+
+	/** The open file of each file descriptor, or <tt>null</tt>. */
+	private OpenFile[] fileTable;
+
+	/**
+	 * The name each file descriptor was opened with, or <tt>null</tt> for the
+	 * console.
+	 */
+	private String[] fileNames;
+
+	/** The unused file descriptors, used as a stack. */
+	private int[] freeDescriptors;
+
+	private int numFreeDescriptors = 0;
+
+	/**
+	 * The number of file descriptors, in every process, open on each file
+	 * name, and whether the name has been unlinked while open.
+	 */
+	private static HashMap<String, FileReference> fileReferences =
+			new HashMap<String, FileReference>();
+
+	private static class FileReference {
+		int count = 0;
+
+		boolean unlinked = false;
+	}
+
+	/**
+	 * Attempt to open the named file, creating it if it does not exist and
+	 * <tt>create</tt> is <tt>true</tt>, and return a new file descriptor
+	 * referring to it. A file that has been unlinked but is still open cannot
+	 * be opened again.
+	 *
+	 * Returns the new file descriptor, or -1 if an error occurred.
+	 */
+	private int openFile(int name, boolean create) {
+		String file = readVirtualMemoryString(name, maximumFileSize);
+		if (file == null || numFreeDescriptors == 0)
+			return -1;
+
+		if (!referenceFile(file))
+			return -1;
+
+		OpenFile openFile = ThreadedKernel.fileSystem.open(file, create);
+		if (openFile == null) {
+			releaseFile(file);
+			return -1;
+		}
+
+		// every open file is writable
+		fileChanged(file);
+
+		int fd = freeDescriptors[--numFreeDescriptors];
+		fileTable[fd] = openFile;
+		fileNames[fd] = file;
+
+		return fd;
+	}
+
+	/**
+	 * Called when the named file is created, opened, or unlinked, and so may
+	 * no longer hold the contents it had. Does nothing here.
+	 *
+	 * @param name the name of the file.
+	 */
+	protected void fileChanged(String name) {
+	}
+
+	/**
+	 * Return the open file referred to by a file descriptor.
+	 *
+	 * @return the open file, or <tt>null</tt> if the descriptor is not open.
+	 */
+	protected OpenFile getFile(int fd) {
+		if (fd < 0 || fd >= fileTable.length)
+			return null;
+
+		return fileTable[fd];
+	}
+
+	/**
+	 * Close an open file descriptor and make it available again, completing
+	 * any deferred unlink of its file.
+	 */
+	protected void closeDescriptor(int fd) {
+		fileTable[fd].close();
+		fileTable[fd] = null;
+
+		if (fileNames[fd] != null) {
+			releaseFile(fileNames[fd]);
+			fileNames[fd] = null;
+		}
+
+		freeDescriptors[numFreeDescriptors++] = fd;
+	}
+
+	/**
+	 * Count another descriptor open on the named file.
+	 *
+	 * @return <tt>false</tt> if the file has been unlinked and so may not be
+	 * opened.
+	 */
+	private static boolean referenceFile(String name) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		FileReference reference = fileReferences.get(name);
+		if (reference == null) {
+			reference = new FileReference();
+			fileReferences.put(name, reference);
 		}
-		return -1;
+
+		boolean opened = !reference.unlinked;
+		if (opened)
+			reference.count++;
+
+		Machine.interrupt().restore(intStatus);
+
+		return opened;
+	}
+
+	/**
+	 * Undo one call to <tt>referenceFile()</tt>, removing the file if it was
+	 * unlinked and this was the last descriptor open on it.
+	 */
+	private static void releaseFile(String name) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		FileReference reference = fileReferences.get(name);
+		boolean remove = false;
+		if (--reference.count == 0) {
+			fileReferences.remove(name);
+			remove = reference.unlinked;
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		if (remove)
+			ThreadedKernel.fileSystem.remove(name);
+	}
+
+	private int handleCreat(int name){
+		return openFile(name, true);
 	}
 	
 	private int handleOpen(int name){
-		for (int index = 2; index < maximumFile; index ++) {
-			if (!filesTable.containsKey(index)) {
-				String file = readVirtualMemoryString(name, maximumFileSize);
-				//handle the exception before the file is create
-				if (file == null){ //return -1 if the filename is null
-					return -1; 
-				}
-				//return -1 if the file is out of range
-				if (file.length() > maximumFileSize){
-					return -1;
-				}
-				
-				OpenFile cfile = ThreadedKernel.fileSystem.open(file, true);
-				//return -1 if the file doesn't exist
-				if (cfile == null){
-					return -1;
-				}else {
-					//file does exist
-					filesTable.put(index, cfile);
-					NameDesTable.put(file, index); //for unlink later use.
-					return index;
-				}
-			}
-		}
-		return -1;
+		return openFile(name, false);
 	}
 	
 	 /**
@@ -471,45 +835,16 @@ public class UserProcess {
      * no more data is available.
      */
 	private int handleRead(int index, int vaddr, int count) {
-		int totalReadAmount = 0;
-		int readAddr = vaddr;		
-		byte[] buffer = new byte[bufferSize];
-		boolean flag = true; 
-		
 		//if the files is not open yet, return -1
-		if (!filesTable.containsKey(index))
+		OpenFile file = getFile(index);
+		if (file == null)
 			return -1;
-		
-		if(count<0) {
+
+		if (count < 0)
 			return -1;
-		}
-		
-		OpenFile file = filesTable.get(index);
-		
-		while(flag) {
-			int readBufferSize = count > bufferSize ? bufferSize : count;
-			
-			int readAmount = file.read(buffer, 0, readBufferSize);
-			//if read fail:
-			if (readAmount == -1){
-				return -1;
-			}
-			
-			count = count - readAmount;
-			//if read amount is equal to the buffersize, it means that it reads to the end of the file
-			if(readAmount != bufferSize || count<=0) {
-				flag = false;
-			
-			}
-			
-			writeVirtualMemory(readAddr, buffer, 0, readAmount);
-			totalReadAmount = totalReadAmount + readAmount;
-			readAddr = readAddr + readAmount;
-			
-			
-		}
-		
-		return totalReadAmount;
+
+		// read straight into the pages of the buffer
+		return readFile(file, vaddr, count);
 	}
 	
 	
@@ -531,45 +866,108 @@ public class UserProcess {
      * if a network stream has already been terminated by the remote host.
      */
 	private int handleWrite(int index, int vaddr, int count){
-		byte[] buffer = new byte[bufferSize];
-		boolean flag = true;
-		int totalWriteAmount = 0; //return value
-		int writeRequirment = count;
-		int writeAddr = vaddr;
 		//if the files is not open yet, return -1
-		if (!filesTable.containsKey(index))
+		OpenFile file = getFile(index);
+		if (file == null)
 			return -1;
 		//write count couldn't smaller than 0
 		if (count < 0)
 		    return -1;
 		if (count == 0)
 		    return 0;
-		OpenFile file = filesTable.get(index);
-		
-		while(flag) {
-			int writeBufferSize = count > bufferSize ? bufferSize : count;
-			int writeAmount = readVirtualMemory(writeAddr, buffer, 0, writeBufferSize);
-			count = count - writeAmount;
-			if (file.write(buffer, 0, writeAmount) == -1)
-				return -1;
-			
-			if(count <=0 || writeAmount!= bufferSize) {
-				flag =false;
-			}
-			writeAddr = writeAddr + writeAmount;
-			totalWriteAmount = totalWriteAmount + writeAmount;
-			
-		}
-		
+
+		// write straight from the pages of the buffer
+		int totalWriteAmount = writeFile(file, vaddr, count);
+
 		//if the total write amount is not meet the requirement, then it means that it stop or interrupted.
 		//return -1
-		if (writeRequirment != totalWriteAmount) {
+		if (totalWriteAmount != count) {
 			return -1;
 		}
 		
 		return totalWriteAmount;
 	}
 	
+	/**
+	 * Attempt to read into each of the iovcnt buffers described by the iovec
+	 * array at iov in turn, as if read() were called on each buffer, but
+	 * with a single system call. Stops at the first buffer that is not
+	 * filled.
+	 *
+	 * Returns the total number of bytes read, or -1 if an error occurred.
+	 */
+	private int handleReadv(int index, int iov, int iovcnt) {
+		OpenFile file = getFile(index);
+		byte[] iovecs = readIovecs(iov, iovcnt);
+		if (file == null || iovecs == null)
+			return -1;
+
+		int totalReadAmount = 0;
+		for (int i = 0; i < iovcnt; i++) {
+			int base = Lib.bytesToInt(iovecs, i * iovecSize);
+			int length = Lib.bytesToInt(iovecs, i * iovecSize + 4);
+			if (length < 0)
+				return -1;
+
+			int readAmount = readFile(file, base, length);
+			if (readAmount == -1)
+				return -1;
+
+			totalReadAmount += readAmount;
+			if (readAmount < length)
+				break;
+		}
+
+		return totalReadAmount;
+	}
+
+	/**
+	 * Attempt to write each of the iovcnt buffers described by the iovec
+	 * array at iov in turn, as if write() were called on each buffer, but
+	 * with a single system call.
+	 *
+	 * Returns the total number of bytes written, or -1 if an error occurred,
+	 * including writing fewer bytes than requested.
+	 */
+	private int handleWritev(int index, int iov, int iovcnt) {
+		OpenFile file = getFile(index);
+		byte[] iovecs = readIovecs(iov, iovcnt);
+		if (file == null || iovecs == null)
+			return -1;
+
+		int totalWriteAmount = 0;
+		for (int i = 0; i < iovcnt; i++) {
+			int base = Lib.bytesToInt(iovecs, i * iovecSize);
+			int length = Lib.bytesToInt(iovecs, i * iovecSize + 4);
+			if (length < 0)
+				return -1;
+
+			if (writeFile(file, base, length) != length)
+				return -1;
+
+			totalWriteAmount += length;
+		}
+
+		return totalWriteAmount;
+	}
+
+	/**
+	 * Copy an array of <tt>struct iovec</tt> in from user memory.
+	 *
+	 * @return the array, or <tt>null</tt> if iovcnt is out of range or the
+	 * array cannot be read.
+	 */
+	private byte[] readIovecs(int iov, int iovcnt) {
+		if (iovcnt < 0 || iovcnt > maximumIovecs)
+			return null;
+
+		byte[] iovecs = new byte[iovcnt * iovecSize];
+		if (readVirtualMemory(iov, iovecs) != iovecs.length)
+			return null;
+
+		return iovecs;
+	}
+
 	/**
 	 * Close a file descriptor, so that it no longer refers to any file or
 	 * stream and may be reused. The resources associated with the file
@@ -579,36 +977,41 @@ public class UserProcess {
 	 */
 	 private int handleClose(int index){
 		 //if the file doesn't not open or does not exist, then return -1.
-	     if (!filesTable.containsKey(index))
-	         return -1;
-        OpenFile file = filesTable.get(index);
-        file.close();     
-        //remove it from the file table
-        filesTable.remove(index);
-        return 0;
+		if (getFile(index) == null)
+			return -1;
+
+		closeDescriptor(index);
+		return 0;
 	 }
 	 /**
 	  * Delete a file from the file system. 
 	  *
-	  * If another process has the file open, the underlying file system
-	  * implementation in StubFileSystem will cleanly handle this situation
-	  * (this process will ask the file system to remove the file, but the
-	  * file will not actually be deleted by the file system until all
-	  * other processes are done with the file).
+	  * If any process has the file open, the file is not actually deleted
+	  * until the last descriptor open on it is closed. Until then it cannot
+	  * be opened again.
 	  *
 	  * Returns 0 on success, or -1 if an error occurred.
      */
 	 private int handleUnlink(int fname){
 	 	String fileName = readVirtualMemoryString(fname, maximumFileSize);
-	 	if (!NameDesTable.containsKey(fileName))
+	 	if (fileName == null)
 	 		return -1;
-	 	//if it doesn't exist, then return -1.
-	 	
-	 	int index  = NameDesTable.get(fileName);
-	 	//remove it from the name table and the descriptor table
-	 	NameDesTable.remove(fileName);
-	 	filesTable.remove(index);
- 		
+
+		fileChanged(fileName);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		FileReference reference = fileReferences.get(fileName);
+		boolean alreadyUnlinked = reference != null && reference.unlinked;
+		if (reference != null)
+			reference.unlinked = true;
+
+		Machine.interrupt().restore(intStatus);
+
+		// defer the removal to the last close
+		if (reference != null)
+			return alreadyUnlinked ? -1 : 0;
+
 	 	if (ThreadedKernel.fileSystem.remove(fileName))
 	 		return 0;
 	 	else
@@ -668,6 +1071,16 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  readv(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>14</td>
+	 * <td><tt>int  writev(int fd, struct iovec *iov, int iovcnt);
+	 * 								</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall the syscall number.
@@ -684,6 +1097,10 @@ public class UserProcess {
 			return handleHalt();
 		case syscallExit:
 			return handleExit(a0);
+		case syscallExec:
+			return handleExec(a0, a1, a2);
+		case syscallJoin:
+			return handleJoin(a0, a1);
 		case syscallCreate:
 			return handleCreat(a0);
 		case syscallOpen:
@@ -696,6 +1113,10 @@ public class UserProcess {
 			return handleClose(a0);
 		case syscallUnlink:
 			return handleUnlink(a0);
+		case syscallReadv:
+			return handleReadv(a0, a1, a2);
+		case syscallWritev:
+			return handleWritev(a0, a1, a2);
 
 		default:
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -728,7 +1149,10 @@ public class UserProcess {
 		default:
 			Lib.debug(dbgProcess, "Unexpected exception: "
 					+ Processor.exceptionNames[cause]);
-			Lib.assertNotReached("Unexpected exception");
+
+			// kill the process; only its parent will notice
+			exitedNormally = false;
+			finishProcess();
 		}
 	}
 
@@ -746,7 +1170,32 @@ public class UserProcess {
 
 	/** The thread that executes the user-level program. */
         protected UThread thread;
-    
+
+	/**
+	 * This process's ID, unique among all processes. Assigned once the
+	 * program has been loaded.
+	 */
+	protected int processID;
+
+	/** The children of this process that have not been joined. */
+	private HashMap<Integer, UserProcess> children =
+			new HashMap<Integer, UserProcess>();
+
+	/** Released once when this process finishes. */
+	private Semaphore exited = new Semaphore(0);
+
+	private int exitStatus;
+
+	private boolean exitedNormally = false;
+
+	private static int nextProcessID = 0;
+
+	/** The number of processes that have been started and not finished. */
+	private static int numProcesses = 0;
+
+	/** The ID of the first process, which alone may halt the machine. */
+	private static final int rootProcessID = 0;
+
 	private int initialPC, initialSP;
 
 	private int argc, argv;
@@ -0,0 +1,65 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * An approximation of least-recently-used replacement. Every timer interrupt,
+ * each resident page's age counter is shifted right and its used bit is
+ * shifted in at the top, then cleared. The page with the smallest counter,
+ * preferring clean pages on a tie, is evicted.
+ */
+public class AgingPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new aging policy.
+	 */
+	public AgingPolicy() {
+		ages = new int[Machine.processor().getNumPhysPages()];
+	}
+
+	public void frameAllocated(int ppn) {
+		// the page is about to be referenced
+		ages[ppn] = recent;
+	}
+
+	public void frameFreed(int ppn) {
+	}
+
+	public int chooseVictim() {
+		int victim = -1;
+		boolean victimDirty = false;
+
+		for (int ppn = 0; ppn < ages.length; ppn++) {
+			if (VMKernel.isPinned(ppn))
+				continue;
+
+			boolean dirty = VMKernel.getEntry(ppn).dirty;
+			int order = victim == -1 ? -1 : Integer.compareUnsigned(ages[ppn],
+					ages[victim]);
+
+			if (order < 0 || (order == 0 && victimDirty && !dirty)) {
+				victim = ppn;
+				victimDirty = dirty;
+			}
+		}
+
+		return victim;
+	}
+
+	public void timerInterrupt() {
+		VMKernel.syncTLB();
+
+		for (int ppn = 0; ppn < ages.length; ppn++) {
+			TranslationEntry entry = VMKernel.getEntry(ppn);
+			if (entry == null)
+				continue;
+
+			ages[ppn] = (ages[ppn] >>> 1) | (entry.used ? recent : 0);
+			entry.used = false;
+		}
+	}
+
+	/** The age counter of each physical page; larger is more recent. */
+	private int[] ages;
+
+	private static final int recent = 0x80000000;
+}
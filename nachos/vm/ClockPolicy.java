@@ -0,0 +1,55 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The enhanced second-chance clock algorithm. The hand first looks for a page
+ * that is neither used nor dirty, then for one that is not used, clearing used
+ * bits as it goes, and then repeats both sweeps. Clean pages are preferred
+ * because evicting them costs no swap write.
+ */
+public class ClockPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new clock policy.
+	 */
+	public ClockPolicy() {
+		numFrames = Machine.processor().getNumPhysPages();
+	}
+
+	public void frameAllocated(int ppn) {
+	}
+
+	public void frameFreed(int ppn) {
+	}
+
+	public int chooseVictim() {
+		for (int sweep = 0; sweep < 4; sweep++) {
+			boolean clearUsed = (sweep % 2 == 1);
+
+			for (int i = 0; i < numFrames; i++) {
+				int ppn = hand;
+				hand = (hand + 1) % numFrames;
+
+				if (VMKernel.isPinned(ppn))
+					continue;
+
+				TranslationEntry entry = VMKernel.getEntry(ppn);
+				if (!entry.used && (clearUsed || !entry.dirty))
+					return ppn;
+
+				if (clearUsed)
+					entry.used = false;
+			}
+		}
+
+		return -1;
+	}
+
+	public void timerInterrupt() {
+	}
+
+	private int numFrames;
+
+	/** The next physical page to consider. */
+	private int hand = 0;
+}
@@ -0,0 +1,43 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Evicts the page that has been resident the longest, ignoring used bits.
+ */
+public class FIFOPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new FIFO policy.
+	 */
+	public FIFOPolicy() {
+	}
+
+	public void frameAllocated(int ppn) {
+		residents.add(ppn);
+	}
+
+	public void frameFreed(int ppn) {
+		residents.remove((Integer) ppn);
+	}
+
+	public int chooseVictim() {
+		for (Iterator<Integer> i = residents.iterator(); i.hasNext();) {
+			int ppn = i.next();
+			if (!VMKernel.isPinned(ppn)) {
+				i.remove();
+				return ppn;
+			}
+		}
+
+		return -1;
+	}
+
+	public void timerInterrupt() {
+	}
+
+	/** Resident physical pages, oldest first. */
+	private LinkedList<Integer> residents = new LinkedList<Integer>();
+}
@@ -0,0 +1,45 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Decides which physical page <tt>VMKernel</tt> evicts when it needs a page
+ * and none are free. The policy is chosen by the <tt>nachos.conf</tt> key
+ * <tt>VMKernel.replacementPolicy</tt>.
+ * 
+ * <p>
+ * A policy inspects frames through <tt>VMKernel.isPinned()</tt> and
+ * <tt>VMKernel.getEntry()</tt>, and may clear the used bits of the entries it
+ * is given. Except for <tt>timerInterrupt()</tt>, every method is called with
+ * <tt>VMKernel.memoryLock</tt> held.
+ */
+public interface PageReplacementPolicy {
+	/**
+	 * Called when the specified physical page is given a new virtual page.
+	 * 
+	 * @param ppn the physical page.
+	 */
+	public void frameAllocated(int ppn);
+
+	/**
+	 * Called when the specified physical page is returned to the free list.
+	 * 
+	 * @param ppn the physical page.
+	 */
+	public void frameFreed(int ppn);
+
+	/**
+	 * Choose a physical page to evict. All physical pages are in use, and the
+	 * used and dirty bits of the current process's TLB entries have been
+	 * copied to its page table.
+	 * 
+	 * @return the physical page to evict, or -1 if every page is pinned.
+	 */
+	public int chooseVictim();
+
+	/**
+	 * Called on every timer interrupt, with interrupts disabled, so that the
+	 * policy can sample used bits.
+	 */
+	public void timerInterrupt();
+}
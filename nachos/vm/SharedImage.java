@@ -0,0 +1,185 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * The physical pages holding the initialized COFF sections of an executable,
+ * shared by every VM process running that executable. Pages of read-only
+ * sections are mapped read-only. Pages of writable sections are mapped
+ * copy-on-write: a process gets a private copy of such a page the first time
+ * it writes to it.
+ *
+ * <p>
+ * Shared pages are never dirty, so evicting one only requires unmapping it
+ * from each process. The pages are freed when the last process using the
+ * executable releases it. All methods must be called with
+ * <tt>VMKernel.memoryLock</tt> held.
+ *
+ * <p>
+ * An image stops being shared with new processes once its file is created,
+ * opened, or unlinked by a user process (see <tt>VMKernel.forgetImage()</tt>),
+ * so that an executable rewritten in place is never run from the pages of its
+ * old contents.
+ */
+class SharedImage {
+	/**
+	 * Allocate a new, empty shared image of the specified executable.
+	 *
+	 * @param name the name of the executable file.
+	 * @param coff the executable.
+	 */
+	SharedImage(String name, Coff coff) {
+		this.name = name;
+
+		entryPoint = coff.getEntryPoint();
+		firstVPNs = new int[coff.getNumSections()];
+		lengths = new int[coff.getNumSections()];
+
+		int numPages = 0;
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+
+			firstVPNs[s] = section.getFirstVPN();
+			lengths[s] = section.getLength();
+			numPages = Math.max(numPages, firstVPNs[s] + lengths[s]);
+		}
+
+		ppns = new int[numPages];
+		entries = new TranslationEntry[numPages];
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			ppns[vpn] = -1;
+			entries[vpn] = new TranslationEntry(vpn, -1, false, true, false,
+					false);
+		}
+	}
+
+	/**
+	 * Return <tt>true</tt> if the specified executable has the same layout as
+	 * the one this image was created from, so that the two can share pages.
+	 *
+	 * @param coff the executable.
+	 * @return <tt>true</tt> if the layouts match.
+	 */
+	boolean matches(Coff coff) {
+		if (coff.getEntryPoint() != entryPoint
+				|| coff.getNumSections() != firstVPNs.length)
+			return false;
+
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			if (section.getFirstVPN() != firstVPNs[s]
+					|| section.getLength() != lengths[s])
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Add a process to the processes using this image.
+	 */
+	void attach(VMProcess process) {
+		processes.add(process);
+	}
+
+	/**
+	 * Remove a process from the processes using this image. The process must
+	 * already have unmapped all of its shared pages.
+	 *
+	 * @return <tt>true</tt> if no process is using this image any longer.
+	 */
+	boolean detach(VMProcess process) {
+		processes.remove(process);
+
+		return processes.isEmpty();
+	}
+
+	/**
+	 * Return the physical page holding the specified virtual page.
+	 *
+	 * @param vpn the virtual page.
+	 * @return the physical page, or -1 if the page is not resident.
+	 */
+	int getFrame(int vpn) {
+		return ppns[vpn];
+	}
+
+	/**
+	 * Record that the specified physical page now holds the specified virtual
+	 * page.
+	 */
+	void setFrame(int vpn, int ppn) {
+		ppns[vpn] = ppn;
+	}
+
+	/**
+	 * Return a translation entry summarizing every mapping of the specified
+	 * resident virtual page, for the page replacement policy. The used bits of
+	 * the processes' entries are moved into the summary, so that the policy
+	 * can clear them.
+	 *
+	 * @param vpn the virtual page.
+	 * @return the summary entry.
+	 */
+	TranslationEntry getEntry(int vpn) {
+		TranslationEntry shared = entries[vpn];
+		shared.ppn = ppns[vpn];
+		shared.valid = true;
+
+		for (VMProcess process : processes) {
+			TranslationEntry entry = process.getEntry(vpn);
+			if (entry.valid && entry.ppn == shared.ppn && entry.used) {
+				shared.used = true;
+				entry.used = false;
+			}
+		}
+
+		return shared;
+	}
+
+	/**
+	 * Evict the specified virtual page, unmapping it from every process.
+	 *
+	 * @param vpn the virtual page.
+	 */
+	void evictPage(int vpn) {
+		Lib.assertTrue(ppns[vpn] != -1);
+
+		for (VMProcess process : processes)
+			process.unmapSharedPage(vpn, ppns[vpn]);
+
+		ppns[vpn] = -1;
+		entries[vpn].used = false;
+	}
+
+	/**
+	 * Free every resident page. Called once no process is using the image.
+	 */
+	void freeFrames() {
+		Lib.assertTrue(processes.isEmpty());
+
+		for (int vpn = 0; vpn < ppns.length; vpn++) {
+			if (ppns[vpn] != -1) {
+				VMKernel.freeFrame(ppns[vpn]);
+				ppns[vpn] = -1;
+			}
+		}
+	}
+
+	/** The name of the executable file. */
+	final String name;
+
+	private int entryPoint;
+
+	private int[] firstVPNs, lengths;
+
+	/** The physical page holding each virtual page, or -1. */
+	private int[] ppns;
+
+	/** The summary entries returned by <tt>getEntry()</tt>. */
+	private TranslationEntry[] entries;
+
+	private LinkedList<VMProcess> processes = new LinkedList<VMProcess>();
+}
@@ -5,8 +5,18 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.BitSet;
+import java.util.HashMap;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
+ * 
+ * <p>
+ * Physical pages are tracked by an inverted page table. When memory is full, a
+ * page is chosen by a <tt>PageReplacementPolicy</tt>; dirty pages are written
+ * to a swap file, while clean pages are dropped and later read again from
+ * wherever they came from. Processes running the same executable share the
+ * pages of its initialized sections through a <tt>SharedImage</tt>.
  */
 public class VMKernel extends UserKernel {
 	/**
@@ -21,6 +31,41 @@ public class VMKernel extends UserKernel {
 	 */
 	public void initialize(String[] args) {
 		super.initialize(args);
+
+		int numPhysPages = Machine.processor().getNumPhysPages();
+
+		frames = new Frame[numPhysPages];
+		for (int ppn = 0; ppn < numPhysPages; ppn++)
+			frames[ppn] = new Frame(ppn);
+
+		// the frame table manages every page from now on
+		freeFrames = new int[numPhysPages];
+		for (int ppn; (ppn = allocatePage()) != -1;)
+			freeFrames[numFreeFrames++] = ppn;
+
+		// hand out low pages first
+		for (int i = 0, j = numFreeFrames - 1; i < j; i++, j--) {
+			int ppn = freeFrames[i];
+			freeFrames[i] = freeFrames[j];
+			freeFrames[j] = ppn;
+		}
+
+		memoryLock = new Lock();
+		unpinned = new Condition(memoryLock);
+
+		policy = (PageReplacementPolicy) Lib.constructObject(Config.getString(
+				"VMKernel.replacementPolicy", "nachos.vm.ClockPolicy"));
+
+		// let the policy sample used bits before the alarm runs
+		Machine.timer().setInterruptHandler(new Runnable() {
+			public void run() {
+				policy.timerInterrupt();
+				alarm.timerInterrupt();
+			}
+		});
+
+		swapFile = ThreadedKernel.fileSystem.open(swapFileName, true);
+		Lib.assertTrue(swapFile != null, "could not open swap file");
 	}
 
 	/**
@@ -41,11 +86,439 @@ public class VMKernel extends UserKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		if (swapFile != null) {
+			swapFile.close();
+			ThreadedKernel.fileSystem.remove(swapFileName);
+		}
+
 		super.terminate();
 	}
 
+	/**
+	 * Allocate a physical page to hold the specified virtual page of the
+	 * specified process. If there are no free pages, a page chosen by the
+	 * replacement policy is evicted from its owner; if every page is pinned,
+	 * wait until one is unpinned. The caller must hold <tt>memoryLock</tt>.
+	 * 
+	 * @param process the process that will own the page.
+	 * @param vpn the virtual page the page will hold.
+	 * @return the physical page number of the allocated page.
+	 */
+	static int allocateFrame(VMProcess process, int vpn) {
+		Frame frame = allocateFrame(true);
+
+		frame.process = process;
+		frame.vpn = vpn;
+
+		policy.frameAllocated(frame.ppn);
+
+		return frame.ppn;
+	}
+
+	/**
+	 * Allocate a physical page to hold the specified virtual page of a shared
+	 * image, as <tt>allocateFrame(VMProcess, int)</tt> does for a process.
+	 * 
+	 * @param image the shared image that will own the page.
+	 * @param vpn the virtual page the page will hold.
+	 * @return the physical page number of the allocated page.
+	 */
+	static int allocateFrame(SharedImage image, int vpn) {
+		Frame frame = allocateFrame(true);
+
+		frame.image = image;
+		frame.vpn = vpn;
+
+		policy.frameAllocated(frame.ppn);
+
+		return frame.ppn;
+	}
+
+	/**
+	 * Allocate a physical page to read the specified virtual page of the
+	 * specified process ahead of a fault on it, as <tt>allocateFrame()</tt>
+	 * does, but without waiting: a prefetch is not worth blocking for. The
+	 * caller must hold <tt>memoryLock</tt>.
+	 * 
+	 * @param process the process that will own the page.
+	 * @param vpn the virtual page the page will hold.
+	 * @return the physical page number of the allocated page, or -1 if every
+	 * page is pinned.
+	 */
+	static int prefetchFrame(VMProcess process, int vpn) {
+		Frame frame = allocateFrame(false);
+		if (frame == null)
+			return -1;
+
+		frame.process = process;
+		frame.vpn = vpn;
+		frame.prefetched = true;
+
+		policy.frameAllocated(frame.ppn);
+
+		Machine.stats().numPrefetches++;
+
+		return frame.ppn;
+	}
+
+	/**
+	 * Take a free frame, evicting a page to make one if necessary.
+	 * 
+	 * @param wait <tt>true</tt> to wait for a page to be unpinned if every
+	 * page is pinned, <tt>false</tt> to return <tt>null</tt> instead.
+	 */
+	private static Frame allocateFrame(boolean wait) {
+		Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+		Frame frame = null;
+		while (numFreeFrames == 0) {
+			syncTLB();
+
+			int ppn = policy.chooseVictim();
+			if (ppn != -1) {
+				frame = frames[ppn];
+				break;
+			}
+
+			if (!wait)
+				return null;
+
+			unpinned.sleep();
+		}
+
+		if (frame == null) {
+			frame = frames[freeFrames[--numFreeFrames]];
+		}
+		else {
+			Lib.debug(dbgVM, "\tevicting vpn " + frame.vpn + " from ppn "
+					+ frame.ppn);
+
+			checkPrefetched(frame);
+
+			if (frame.image != null)
+				frame.image.evictPage(frame.vpn);
+			else
+				frame.process.evictPage(frame.vpn);
+
+			frame.process = null;
+			frame.image = null;
+		}
+
+		frame.prefetched = false;
+
+		return frame;
+	}
+
+	/**
+	 * Count a hit if the specified frame was filled by a prefetch and its page
+	 * has since been referenced. Only the first reference counts.
+	 */
+	private static void checkPrefetched(Frame frame) {
+		if (!frame.prefetched)
+			return;
+
+		TranslationEntry entry = frame.process.getEntry(frame.vpn);
+		if (entry.valid && entry.ppn == frame.ppn && entry.used) {
+			Machine.stats().numPrefetchHits++;
+			frame.prefetched = false;
+		}
+	}
+
+	/**
+	 * Return the specified physical page to the free list. The caller must
+	 * hold <tt>memoryLock</tt>.
+	 * 
+	 * @param ppn the physical page to free.
+	 */
+	static void freeFrame(int ppn) {
+		Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+		Lib.assertTrue((frames[ppn].process != null || frames[ppn].image != null)
+				&& frames[ppn].pinCount == 0);
+
+		checkPrefetched(frames[ppn]);
+
+		frames[ppn].process = null;
+		frames[ppn].image = null;
+
+		Lib.assertTrue(numFreeFrames < freeFrames.length);
+		freeFrames[numFreeFrames++] = ppn;
+
+		policy.frameFreed(ppn);
+	}
+
+	/**
+	 * Prevent the specified physical page from being evicted until it is
+	 * unpinned. Pins nest. The caller must hold <tt>memoryLock</tt>.
+	 * 
+	 * @param ppn the physical page to pin.
+	 */
+	static void pinFrame(int ppn) {
+		Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+		frames[ppn].pinCount++;
+	}
+
+	/**
+	 * Undo one call to <tt>pinFrame()</tt>. The caller must hold
+	 * <tt>memoryLock</tt>.
+	 * 
+	 * @param ppn the physical page to unpin.
+	 */
+	static void unpinFrame(int ppn) {
+		Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+		Lib.assertTrue(frames[ppn].pinCount > 0);
+
+		if (--frames[ppn].pinCount == 0)
+			unpinned.wake();
+	}
+
+	/**
+	 * Allocate a page-sized slot in the swap file. The caller must hold
+	 * <tt>memoryLock</tt>.
+	 * 
+	 * @return the number of the slot.
+	 */
+	static int allocateSwapSlot() {
+		Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+		int slot = swapSlots.nextClearBit(0);
+		swapSlots.set(slot);
+
+		return slot;
+	}
+
+	/**
+	 * Free a slot returned by <tt>allocateSwapSlot()</tt>. The caller must
+	 * hold <tt>memoryLock</tt>.
+	 * 
+	 * @param slot the slot to free.
+	 */
+	static void freeSwapSlot(int slot) {
+		Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+		Lib.assertTrue(swapSlots.get(slot));
+
+		swapSlots.clear(slot);
+	}
+
+	/**
+	 * Copy a physical page to the specified swap slot.
+	 * 
+	 * @param slot the swap slot to write.
+	 * @param ppn the physical page to copy.
+	 */
+	static void swapOut(int slot, int ppn) {
+		int written = swapFile.write(slot * pageSize, Machine.processor()
+				.getMemory(), ppn * pageSize, pageSize);
+		Lib.assertTrue(written == pageSize, "swap write failed");
+
+		Machine.stats().numSwapWrites++;
+	}
+
+	/**
+	 * Copy the specified swap slot to a physical page.
+	 * 
+	 * @param slot the swap slot to read.
+	 * @param ppn the physical page to fill.
+	 */
+	static void swapIn(int slot, int ppn) {
+		int read = swapFile.read(slot * pageSize, Machine.processor()
+				.getMemory(), ppn * pageSize, pageSize);
+		Lib.assertTrue(read == pageSize, "swap read failed");
+
+		Machine.stats().numSwapReads++;
+	}
+
+	/**
+	 * Copy consecutive swap slots to physical pages, reading them from the
+	 * swap file in a single read.
+	 * 
+	 * @param slot the first swap slot to read.
+	 * @param ppns the physical pages to fill, one for each slot.
+	 */
+	static void swapIn(int slot, int[] ppns) {
+		byte[] buf = new byte[ppns.length * pageSize];
+
+		int read = swapFile.read(slot * pageSize, buf, 0, buf.length);
+		Lib.assertTrue(read == buf.length, "swap read failed");
+
+		byte[] memory = Machine.processor().getMemory();
+		for (int i = 0; i < ppns.length; i++)
+			System.arraycopy(buf, i * pageSize, memory, ppns[i] * pageSize,
+					pageSize);
+
+		Machine.stats().numSwapReads += ppns.length;
+	}
+
+	/**
+	 * Return <tt>true</tt> if the specified physical page is pinned.
+	 * 
+	 * @param ppn the physical page.
+	 * @return <tt>true</tt> if the page may not be evicted.
+	 */
+	static boolean isPinned(int ppn) {
+		return frames[ppn].pinCount > 0;
+	}
+
+	/**
+	 * Return the page table entry of the virtual page held by the specified
+	 * physical page.
+	 * 
+	 * @param ppn the physical page.
+	 * @return the page table entry, or <tt>null</tt> if the page is free.
+	 */
+	static TranslationEntry getEntry(int ppn) {
+		Frame frame = frames[ppn];
+		if (frame.image != null)
+			return frame.image.getEntry(frame.vpn);
+		if (frame.process == null)
+			return null;
+
+		checkPrefetched(frame);
+
+		return frame.process.getEntry(frame.vpn);
+	}
+
+	/**
+	 * Return the shared image of the specified executable for a process that
+	 * is running it, creating the image if no other process is running the
+	 * same executable. The caller must hold <tt>memoryLock</tt>.
+	 * 
+	 * @param name the name of the executable file.
+	 * @param coff the executable, as loaded by the process.
+	 * @param process the process.
+	 * @return the shared image.
+	 */
+	static SharedImage attachImage(String name, Coff coff, VMProcess process) {
+		Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+		SharedImage image = images.get(name);
+		if (image == null || !image.matches(coff)) {
+			// a changed executable gets a new image; the old one lives on
+			// until its last process exits
+			image = new SharedImage(name, coff);
+			images.put(name, image);
+		}
+
+		image.attach(process);
+
+		return image;
+	}
+
+	/**
+	 * Stop handing out the shared image of the named executable, if any, so
+	 * that the next process to run it gets a new image read from the file.
+	 * Processes already using the old image keep it until they exit. The
+	 * caller must hold <tt>memoryLock</tt>.
+	 *
+	 * @param name the name of the executable file.
+	 */
+	static void forgetImage(String name) {
+		Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+		images.remove(name);
+	}
+
+	/**
+	 * Release a process's use of a shared image, freeing the image's pages if
+	 * no other process is using it. The caller must hold <tt>memoryLock</tt>.
+	 * 
+	 * @param image the shared image.
+	 * @param process the process.
+	 */
+	static void detachImage(SharedImage image, VMProcess process) {
+		Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+		if (image.detach(process)) {
+			image.freeFrames();
+
+			if (images.get(image.name) == image)
+				images.remove(image.name);
+		}
+	}
+
+	/**
+	 * Move the used and dirty bits held in the TLB for the current process
+	 * into its page table.
+	 */
+	static void syncTLB() {
+		UserProcess process = UserKernel.currentProcess();
+		if (process instanceof VMProcess)
+			((VMProcess) process).syncTLB();
+	}
+
+	/**
+	 * An entry in the inverted page table: the virtual page held by a
+	 * physical page, if any.
+	 */
+	private static class Frame {
+		Frame(int ppn) {
+			this.ppn = ppn;
+		}
+
+		/** The physical page number of this frame. */
+		final int ppn;
+
+		/** The process whose page this frame holds, or <tt>null</tt>. */
+		VMProcess process = null;
+
+		/** The shared image whose page this frame holds, or <tt>null</tt>. */
+		SharedImage image = null;
+
+		/** The virtual page held by this frame. */
+		int vpn;
+
+		/** The number of outstanding pins; a pinned frame is never evicted. */
+		int pinCount = 0;
+
+		/**
+		 * <tt>true</tt> if this frame was filled by a prefetch, and its page
+		 * has not been referenced yet.
+		 */
+		boolean prefetched = false;
+	}
+
+	/**
+	 * Protects the frame table and every VM process's page table. Held while
+	 * a page is brought in or evicted.
+	 */
+	static Lock memoryLock;
+
+	/** Signalled when a frame becomes unpinned. */
+	private static Condition unpinned;
+
+	/** The inverted page table, indexed by physical page number. */
+	private static Frame[] frames;
+
+	/** The free physical pages, used as a stack. */
+	private static int[] freeFrames;
+
+	private static int numFreeFrames = 0;
+
+	private static PageReplacementPolicy policy;
+
+	/** The shared image of each executable being run, by file name. */
+	private static HashMap<String, SharedImage> images =
+			new HashMap<String, SharedImage>();
+
+	private static OpenFile swapFile;
+
+	/** The slots of the swap file that are in use. */
+	private static BitSet swapSlots = new BitSet();
+
+	private static final String swapFileName = "nachos.swp";
+
+	private static final int pageSize = Processor.pageSize;
+
 	// dummy variables to make javac smarter
 	private static VMProcess dummy1 = null;
 
+	private static ClockPolicy dummy2 = null;
+
+	private static AgingPolicy dummy3 = null;
+
+	private static FIFOPolicy dummy4 = null;
+
+	private static WorkingSetPolicy dummy5 = null;
+
 	private static final char dbgVM = 'v';
 }
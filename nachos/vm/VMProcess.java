@@ -5,6 +5,9 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+import java.util.LinkedList;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -14,6 +17,25 @@ public class VMProcess extends UserProcess {
 	 */
 	public VMProcess() {
 		super();
+
+		prefetchPages = Math.max(0, Math.min(Config.getInteger(
+				"VMProcess.prefetchPages", 4), Machine.processor()
+				.getNumPhysPages() / 4));
+	}
+
+	/**
+	 * Execute the specified program with the specified arguments. The name is
+	 * remembered so that processes running the same executable can share its
+	 * pages.
+	 *
+	 * @param name the name of the file containing the executable.
+	 * @param args the arguments to pass to the executable.
+	 * @return <tt>true</tt> if the program was successfully executed.
+	 */
+	public boolean execute(String name, String[] args) {
+		executableName = name;
+
+		return super.execute(name, args);
 	}
 
 	/**
@@ -22,6 +44,18 @@ public class VMProcess extends UserProcess {
 	 */
 	public void saveState() {
 		super.saveState();
+
+		Processor processor = Machine.processor();
+		if (processor.hasTLB()) {
+			// the TLB holds the only up-to-date used and dirty bits
+			for (int i = 0; i < processor.getTLBSize(); i++) {
+				TranslationEntry entry = processor.readTLBEntry(i);
+				if (entry.valid) {
+					syncTLBEntry(entry);
+					processor.writeTLBEntry(i, invalidEntry);
+				}
+			}
+		}
 	}
 
 	/**
@@ -29,45 +63,895 @@ public class VMProcess extends UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
-		super.restoreState();
+		if (!Machine.processor().hasTLB())
+			super.restoreState();
 	}
 
 	/**
 	 * Initializes page tables for this process so that the executable can be
-	 * demand-paged.
-	 * 
+	 * demand-paged. No physical memory is allocated until a page is touched.
+	 * Pages of initialized sections come from the executable's shared image.
+	 *
 	 * @return <tt>true</tt> if successful.
 	 */
 	protected boolean loadSections() {
-		return super.loadSections();
+		pageTable = new TranslationEntry[numPages];
+		pageSections = new CoffSection[numPages];
+		sectionPages = new int[numPages];
+		swapSlots = new int[numPages];
+		Arrays.fill(swapSlots, -1);
+		copied = new boolean[numPages];
+		pageMappings = new Mapping[numPages];
+		programPages = numPages;
+
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+
+			Lib.debug(dbgProcess, "\tinitializing " + section.getName()
+					+ " section (" + section.getLength() + " pages)");
+
+			for (int i = 0; i < section.getLength(); i++) {
+				int vpn = section.getFirstVPN() + i;
+
+				pageSections[vpn] = section;
+				sectionPages[vpn] = i;
+			}
+		}
+
+		for (int vpn = 0; vpn < numPages; vpn++)
+			pageTable[vpn] = new TranslationEntry(vpn, -1, false,
+					isReadOnly(vpn), false, false);
+
+		if (executableName != null) {
+			VMKernel.memoryLock.acquire();
+			image = VMKernel.attachImage(executableName, coff, this);
+			VMKernel.memoryLock.release();
+		}
+
+		return true;
 	}
 
 	/**
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		super.unloadSections();
+		VMKernel.memoryLock.acquire();
+
+		// collect the last used bits, for counting prefetch hits
+		VMKernel.syncTLB();
+
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			if (pageTable[vpn].valid) {
+				// shared pages belong to the image
+				if (!isShared(vpn))
+					VMKernel.freeFrame(pageTable[vpn].ppn);
+				pageTable[vpn].valid = false;
+			}
+			if (swapSlots[vpn] != -1) {
+				VMKernel.freeSwapSlot(swapSlots[vpn]);
+				swapSlots[vpn] = -1;
+			}
+		}
+
+		if (image != null) {
+			VMKernel.detachImage(image, this);
+			image = null;
+		}
+
+		VMKernel.memoryLock.release();
+
+		coff.close();
+	}
+
+	/**
+	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
+	 * <i>syscall</i> argument identifies which syscall the user executed:
+	 * 
+	 * <table>
+	 * <tr>
+	 * <td>syscall#</td>
+	 * <td>syscall prototype</td>
+	 * </tr>
+	 * <tr>
+	 * <td>10</td>
+	 * <td><tt>int  mmap(int fd, char *address);</tt></td>
+	 * </tr>
+	 * <tr>
+	 * <td>15</td>
+	 * <td><tt>int  munmap(char *address);</tt></td>
+	 * </tr>
+	 * </table>
+	 * 
+	 * <p>
+	 * <tt>read()</tt>, <tt>write()</tt>, <tt>readv()</tt> and
+	 * <tt>writev()</tt> fail on a file descriptor that is mapped.
+	 * 
+	 * @param syscall the syscall number.
+	 * @param a0 the first syscall argument.
+	 * @param a1 the second syscall argument.
+	 * @param a2 the third syscall argument.
+	 * @param a3 the fourth syscall argument.
+	 * @return the value to be returned to the user.
+	 */
+	public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+		switch (syscall) {
+		case syscallMmap:
+			return handleMmap(a0, a1);
+		case syscallMunmap:
+			return handleMunmap(a0);
+		case syscallRead:
+		case syscallWrite:
+		case syscallReadv:
+		case syscallWritev:
+			if (getMapping(a0) != null)
+				return -1;
+			return super.handleSyscall(syscall, a0, a1, a2, a3);
+		default:
+			return super.handleSyscall(syscall, a0, a1, a2, a3);
+		}
+	}
+
+	/**
+	 * Handle the mmap() system call. The whole file is mapped, starting at the
+	 * page-aligned <i>address</i>, which must lie past the program's own pages
+	 * and clear of any other mapping. No page is read until it is touched; a
+	 * page that is written to goes back to the file when it is evicted or
+	 * unmapped.
+	 *
+	 * @return the length of the file, or -1 on error.
+	 */
+	private int handleMmap(int fd, int address) {
+		OpenFile file = getFile(fd);
+		if (file == null || getMapping(fd) != null)
+			return -1;
+
+		int length = file.length();
+		if (length < 0 || address < 0 || address % pageSize != 0)
+			return -1;
+
+		int firstVPN = Processor.pageFromAddress(address);
+		int count = (int) (((long) length + pageSize - 1) / pageSize);
+		if (firstVPN < programPages || firstVPN + count > maxVirtualPages)
+			return -1;
+
+		VMKernel.memoryLock.acquire();
+
+		int end = Math.min(firstVPN + count, numPages);
+		for (int vpn = firstVPN; vpn < end; vpn++) {
+			if (pageMappings[vpn] != null) {
+				VMKernel.memoryLock.release();
+				return -1;
+			}
+		}
+
+		if (firstVPN + count > numPages)
+			growPageTable(firstVPN + count);
+
+		Mapping mapping = new Mapping(fd, file, firstVPN, count, length);
+		for (int vpn = firstVPN; vpn < firstVPN + count; vpn++)
+			pageMappings[vpn] = mapping;
+		mappings.add(mapping);
+
+		VMKernel.memoryLock.release();
+
+		Lib.debug(dbgVM, "	mapped fd " + fd + " at vpns " + firstVPN + "-"
+				+ (firstVPN + count - 1));
+
+		return length;
+	}
+
+	/**
+	 * Handle the munmap() system call, removing the mapping that starts at
+	 * <i>address</i>. The file descriptor stays open.
+	 *
+	 * @return 0 on success, or -1 if no mapping starts at <i>address</i>.
+	 */
+	private int handleMunmap(int address) {
+		for (Mapping mapping : mappings) {
+			if (address == Processor.makeAddress(mapping.firstVPN, 0)) {
+				unmap(mapping);
+				return 0;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Close an open file descriptor, first removing its mapping, if any.
+	 */
+	protected void closeDescriptor(int fd) {
+		Mapping mapping = getMapping(fd);
+		if (mapping != null)
+			unmap(mapping);
+
+		super.closeDescriptor(fd);
+	}
+
+	/**
+	 * Stop sharing the image of the named file with processes that execute it
+	 * from now on, since its contents may change.
+	 */
+	protected void fileChanged(String name) {
+		VMKernel.memoryLock.acquire();
+		VMKernel.forgetImage(name);
+		VMKernel.memoryLock.release();
+	}
+
+	/**
+	 * Return the mapping of the specified file descriptor.
+	 *
+	 * @return the mapping, or <tt>null</tt> if the descriptor is not mapped.
+	 */
+	private Mapping getMapping(int fd) {
+		for (Mapping mapping : mappings) {
+			if (mapping.fd == fd)
+				return mapping;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Remove a mapping, writing its dirty resident pages back to the file.
+	 */
+	private void unmap(Mapping mapping) {
+		VMKernel.memoryLock.acquire();
+
+		// the TLB may hold the only up-to-date dirty bits
+		VMKernel.syncTLB();
+
+		for (int vpn = mapping.firstVPN; vpn < mapping.firstVPN
+				+ mapping.numPages; vpn++) {
+			TranslationEntry entry = pageTable[vpn];
+			if (entry.valid) {
+				invalidateTLBEntry(vpn);
+				entry.valid = false;
+
+				if (entry.dirty)
+					mapping.writePage(vpn, entry.ppn);
+
+				VMKernel.freeFrame(entry.ppn);
+			}
+
+			pageMappings[vpn] = null;
+		}
+
+		mappings.remove(mapping);
+
+		VMKernel.memoryLock.release();
+
+		Lib.debug(dbgVM, "	unmapped fd " + mapping.fd);
+	}
+
+	/**
+	 * Extend the address space to the specified number of pages, so that a
+	 * mapping can be placed past its current end. The new pages are invalid
+	 * until mapped. The caller must hold <tt>VMKernel.memoryLock</tt>.
+	 */
+	private void growPageTable(int newNumPages) {
+		pageTable = Arrays.copyOf(pageTable, newNumPages);
+		pageSections = Arrays.copyOf(pageSections, newNumPages);
+		sectionPages = Arrays.copyOf(sectionPages, newNumPages);
+		swapSlots = Arrays.copyOf(swapSlots, newNumPages);
+		Arrays.fill(swapSlots, numPages, newNumPages, -1);
+		copied = Arrays.copyOf(copied, newNumPages);
+		pageMappings = Arrays.copyOf(pageMappings, newNumPages);
+
+		for (int vpn = numPages; vpn < newNumPages; vpn++)
+			pageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+					false, false);
+
+		numPages = newNumPages;
+
+		if (!Machine.processor().hasTLB())
+			Machine.processor().setPageTable(pageTable);
 	}
 
 	/**
 	 * Handle a user exception. Called by <tt>UserKernel.exceptionHandler()</tt>
 	 * . The <i>cause</i> argument identifies which exception occurred; see the
 	 * <tt>Processor.exceptionZZZ</tt> constants.
-	 * 
+	 *
 	 * @param cause the user exception that occurred.
 	 */
 	public void handleException(int cause) {
 		Processor processor = Machine.processor();
 
 		switch (cause) {
+		case Processor.exceptionPageFault:
+		case Processor.exceptionTLBMiss:
+			int vpn = Processor.pageFromAddress(processor
+					.readRegister(Processor.regBadVAddr));
+			if (!isValidPage(vpn)) {
+				super.handleException(cause);
+				break;
+			}
+
+			handleMiss(vpn);
+			break;
+
+		case Processor.exceptionReadOnly:
+			vpn = Processor.pageFromAddress(processor
+					.readRegister(Processor.regBadVAddr));
+			if (!isValidPage(vpn) || !isCopyOnWrite(vpn)) {
+				super.handleException(cause);
+				break;
+			}
+
+			handleCopyOnWrite(vpn);
+			break;
+
 		default:
 			super.handleException(cause);
 			break;
 		}
 	}
 
+	/**
+	 * Handle a page fault or TLB miss on the specified virtual page by bringing
+	 * the page in if it is not resident, and loading its translation into the
+	 * TLB if there is one. The faulting instruction is then restarted.
+	 *
+	 * @param vpn the virtual page that was referenced.
+	 */
+	private void handleMiss(int vpn) {
+		// most TLB misses are for resident pages, and only need the entry
+		// loaded; taking memoryLock for them would queue every process behind
+		// whichever one is paging, so disable interrupts instead
+		if (Machine.processor().hasTLB()) {
+			boolean intStatus = Machine.interrupt().disable();
+
+			TranslationEntry entry = pageTable[vpn];
+			boolean resident = entry.valid;
+			if (resident)
+				loadTLBEntry(entry);
+
+			Machine.interrupt().restore(intStatus);
+
+			if (resident)
+				return;
+		}
+
+		VMKernel.memoryLock.acquire();
+
+		TranslationEntry entry = pageIn(vpn);
+
+		if (Machine.processor().hasTLB())
+			loadTLBEntry(entry);
+
+		VMKernel.memoryLock.release();
+	}
+
+	/**
+	 * Handle a write to a copy-on-write page by giving this process its own
+	 * copy of the page. The faulting instruction is then restarted.
+	 *
+	 * @param vpn the virtual page that was written.
+	 */
+	private void handleCopyOnWrite(int vpn) {
+		VMKernel.memoryLock.acquire();
+
+		TranslationEntry entry = copyPage(vpn);
+
+		if (Machine.processor().hasTLB())
+			loadTLBEntry(entry);
+
+		VMKernel.memoryLock.release();
+	}
+
+	/**
+	 * Load the specified translation into the TLB, replacing the entry for the
+	 * same page if there is one, else an empty entry in its set if possible,
+	 * else the entries of the set in turn.
+	 *
+	 * @param entry the page table entry to load.
+	 */
+	private void loadTLBEntry(TranslationEntry entry) {
+		Processor processor = Machine.processor();
+
+		int ways = processor.getTLBAssociativity();
+		int first = processor.getTLBSet(entry.vpn) * ways;
+
+		int number = -1;
+		for (int i = first; i < first + ways; i++) {
+			TranslationEntry tlbEntry = processor.readTLBEntry(i);
+			if (tlbEntry.valid && tlbEntry.vpn == entry.vpn) {
+				number = i;
+				break;
+			}
+			if (!tlbEntry.valid && number == -1)
+				number = i;
+		}
+		if (number == -1)
+			number = first + (nextTLBVictim++ % ways);
+
+		TranslationEntry old = processor.readTLBEntry(number);
+		if (old.valid)
+			syncTLBEntry(old);
+
+		processor.writeTLBEntry(number, entry);
+	}
+
+	/**
+	 * Remove the translation for the specified page from the TLB, if this
+	 * process is using the TLB and the page is in it.
+	 *
+	 * @param vpn the virtual page.
+	 */
+	private void invalidateTLBEntry(int vpn) {
+		Processor processor = Machine.processor();
+		if (!processor.hasTLB() || UserKernel.currentProcess() != this)
+			return;
+
+		int ways = processor.getTLBAssociativity();
+		int first = processor.getTLBSet(vpn) * ways;
+
+		for (int i = first; i < first + ways; i++) {
+			TranslationEntry tlbEntry = processor.readTLBEntry(i);
+			if (tlbEntry.valid && tlbEntry.vpn == vpn) {
+				syncTLBEntry(tlbEntry);
+				processor.writeTLBEntry(i, invalidEntry);
+			}
+		}
+	}
+
+	/**
+	 * Make the specified virtual page resident, and pin it so that it stays
+	 * resident until <tt>unpinPage()</tt> is called. Writing to a
+	 * copy-on-write page first gives this process its own copy.
+	 *
+	 * @param vpn the virtual page to pin.
+	 * @param writing <tt>true</tt> if the caller will modify the page.
+	 * @return the physical page holding the virtual page, or -1 if the page
+	 * does not exist or is read-only and <tt>writing</tt> is <tt>true</tt>.
+	 */
+	protected int pinPage(int vpn, boolean writing) {
+		if (!isValidPage(vpn) || (writing && isReadOnly(vpn)))
+			return -1;
+
+		VMKernel.memoryLock.acquire();
+
+		TranslationEntry entry;
+		if (writing && isCopyOnWrite(vpn))
+			entry = copyPage(vpn);
+		else
+			entry = pageIn(vpn);
+
+		entry.used = true;
+		if (writing)
+			entry.dirty = true;
+
+		VMKernel.pinFrame(entry.ppn);
+
+		VMKernel.memoryLock.release();
+
+		return entry.ppn;
+	}
+
+	/**
+	 * Undo one call to <tt>pinPage()</tt>.
+	 *
+	 * @param ppn the physical page returned by <tt>pinPage()</tt>.
+	 */
+	protected void unpinPage(int ppn) {
+		VMKernel.memoryLock.acquire();
+		VMKernel.unpinFrame(ppn);
+		VMKernel.memoryLock.release();
+	}
+
+	/**
+	 * Bring in the specified virtual page if it is not resident. A shared page
+	 * is mapped from the shared image, which reads it from the executable if
+	 * no process has it resident. Otherwise, a page of a mapped file is read
+	 * from the file, a page that has been written to swap is read back from
+	 * swap, a COFF page is read from the executable, and any other page is
+	 * zero-filled.
+	 *
+	 * <p>
+	 * A fault on the page just past the last ones brought in suggests a
+	 * sequential scan, so up to <tt>VMProcess.prefetchPages</tt> following
+	 * pages that come from the same place are read in the same pass. The
+	 * caller must hold <tt>VMKernel.memoryLock</tt>.
+	 *
+	 * @param vpn the virtual page to bring in.
+	 * @return the page table entry of the page, which is now valid.
+	 */
+	private TranslationEntry pageIn(int vpn) {
+		TranslationEntry entry = pageTable[vpn];
+		if (entry.valid)
+			return entry;
+
+		// with a TLB the processor only sees misses, so count the faults here
+		if (Machine.processor().hasTLB())
+			Machine.stats().numPageFaults++;
+
+		if (isShared(vpn)) {
+			int ppn = image.getFrame(vpn);
+			if (ppn == -1) {
+				ppn = VMKernel.allocateFrame(image, vpn);
+
+				Lib.debug(dbgVM, "\tpage in shared vpn " + vpn + " to ppn "
+						+ ppn);
+
+				pageSections[vpn].loadPage(sectionPages[vpn], ppn);
+				Machine.stats().numCOFFReads++;
+
+				image.setFrame(vpn, ppn);
+			}
+
+			entry.ppn = ppn;
+			entry.valid = true;
+			entry.readOnly = true;
+			entry.used = true;
+			entry.dirty = false;
+
+			return entry;
+		}
+
+		boolean sequential = (vpn == nextSequentialVPN);
+
+		int ppn = VMKernel.allocateFrame(this, vpn);
+
+		Lib.debug(dbgVM, "\tpage in vpn " + vpn + " to ppn " + ppn);
+
+		int[] ppns = new int[sequential ? 1 + prefetchPages : 1];
+		ppns[0] = ppn;
+
+		// pin the pages until they are loaded, so that allocating the next
+		// one cannot evict them
+		int count = 1;
+		if (sequential) {
+			VMKernel.pinFrame(ppn);
+
+			while (count < ppns.length && canPrefetch(vpn, vpn + count)) {
+				int prefetched = VMKernel.prefetchFrame(this, vpn + count);
+				if (prefetched == -1)
+					break;
+
+				VMKernel.pinFrame(prefetched);
+				ppns[count++] = prefetched;
+			}
+
+			if (count > 1)
+				Lib.debug(dbgVM, "\tprefetch vpns " + (vpn + 1) + "-"
+						+ (vpn + count - 1));
+		}
+		ppns = Arrays.copyOf(ppns, count);
+
+		nextSequentialVPN = vpn + count;
+
+		if (pageMappings[vpn] != null) {
+			pageMappings[vpn].loadPages(vpn, ppns);
+		}
+		else if (swapSlots[vpn] != -1) {
+			if (count == 1)
+				VMKernel.swapIn(swapSlots[vpn], ppn);
+			else
+				VMKernel.swapIn(swapSlots[vpn], ppns);
+		}
+		else if (pageSections[vpn] != null) {
+			if (count == 1)
+				pageSections[vpn].loadPage(sectionPages[vpn], ppn);
+			else
+				pageSections[vpn].loadPages(sectionPages[vpn], ppns);
+			if (pageSections[vpn].isInitialzed())
+				Machine.stats().numCOFFReads += count;
+		}
+		else {
+			Arrays.fill(Machine.processor().getMemory(), ppn * pageSize,
+					(ppn + 1) * pageSize, (byte) 0);
+		}
+
+		for (int i = 0; i < count; i++) {
+			TranslationEntry loaded = pageTable[vpn + i];
+
+			// the faulting page is about to be referenced, so give it a
+			// second chance; a prefetched page must earn one
+			loaded.ppn = ppns[i];
+			loaded.valid = true;
+			loaded.readOnly = isReadOnly(vpn + i);
+			loaded.used = (i == 0);
+			loaded.dirty = false;
+
+			if (sequential)
+				VMKernel.unpinFrame(ppns[i]);
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Return <tt>true</tt> if page <tt>next</tt> can be read in the same pass
+	 * as the faulting page <tt>vpn</tt>: it is not resident, not shared, and
+	 * its contents follow those of <tt>vpn</tt> in the same mapped file, in
+	 * the swap file or in the same COFF section.
+	 */
+	private boolean canPrefetch(int vpn, int next) {
+		if (next >= numPages || pageTable[next].valid || isShared(next))
+			return false;
+
+		if (pageMappings[vpn] != null)
+			return pageMappings[next] == pageMappings[vpn];
+
+		if (swapSlots[vpn] != -1)
+			return swapSlots[next] == swapSlots[vpn] + (next - vpn);
+
+		return pageSections[vpn] != null && pageSections[vpn].isInitialzed()
+				&& swapSlots[next] == -1
+				&& pageSections[next] == pageSections[vpn]
+				&& sectionPages[next] == sectionPages[vpn] + (next - vpn);
+	}
+
+	/**
+	 * Give this process its own writable copy of a copy-on-write page. The
+	 * copy is dirty, since the shared image still holds the original. The
+	 * caller must hold <tt>VMKernel.memoryLock</tt>.
+	 *
+	 * @param vpn the virtual page to copy.
+	 * @return the page table entry of the copy.
+	 */
+	private TranslationEntry copyPage(int vpn) {
+		TranslationEntry entry = pageIn(vpn);
+		if (!isCopyOnWrite(vpn))
+			return entry;
+
+		int shared = entry.ppn;
+
+		// keep the original resident while a page is found for the copy
+		VMKernel.pinFrame(shared);
+		int ppn = VMKernel.allocateFrame(this, vpn);
+		VMKernel.unpinFrame(shared);
+
+		Lib.debug(dbgVM, "\tcopy on write vpn " + vpn + " from ppn " + shared
+				+ " to ppn " + ppn);
+
+		byte[] memory = Machine.processor().getMemory();
+		System.arraycopy(memory, shared * pageSize, memory, ppn * pageSize,
+				pageSize);
+
+		copied[vpn] = true;
+
+		// the TLB may still map the shared page read-only; when the kernel
+		// makes the copy through pinPage(), nothing else would replace it
+		invalidateTLBEntry(vpn);
+
+		entry.ppn = ppn;
+		entry.valid = true;
+		entry.readOnly = false;
+		entry.used = true;
+		entry.dirty = true;
+
+		return entry;
+	}
+
+	/**
+	 * Evict the specified virtual page, which must be resident. A page that
+	 * has been modified since it was brought in is written back to its mapped
+	 * file, or else to swap, keeping the swap slot it already has, if any. A
+	 * clean page is simply dropped, since its file, swap slot or COFF page
+	 * still holds its contents. Called by
+	 * <tt>VMKernel.allocateFrame()</tt> with <tt>VMKernel.memoryLock</tt> held.
+	 *
+	 * @param vpn the virtual page to evict.
+	 */
+	void evictPage(int vpn) {
+		TranslationEntry entry = pageTable[vpn];
+		Lib.assertTrue(entry.valid && !isShared(vpn));
+
+		// invalidate first, so that a TLB miss cannot map the page while it
+		// is being written out
+		invalidateTLBEntry(vpn);
+		entry.valid = false;
+
+		if (entry.dirty && pageMappings[vpn] != null) {
+			pageMappings[vpn].writePage(vpn, entry.ppn);
+		}
+		else if (entry.dirty) {
+			if (swapSlots[vpn] == -1)
+				swapSlots[vpn] = VMKernel.allocateSwapSlot();
+
+			VMKernel.swapOut(swapSlots[vpn], entry.ppn);
+		}
+	}
+
+	/**
+	 * Unmap a shared page that its image is evicting, if this process has it
+	 * mapped. Called by <tt>SharedImage.evictPage()</tt> with
+	 * <tt>VMKernel.memoryLock</tt> held.
+	 *
+	 * @param vpn the virtual page.
+	 * @param ppn the physical page being evicted.
+	 */
+	void unmapSharedPage(int vpn, int ppn) {
+		TranslationEntry entry = pageTable[vpn];
+		if (!entry.valid || entry.ppn != ppn || !isShared(vpn))
+			return;
+
+		invalidateTLBEntry(vpn);
+
+		entry.valid = false;
+	}
+
+	/**
+	 * Return <tt>true</tt> if the specified page belongs to the program's own
+	 * pages or to a mapped file.
+	 */
+	private boolean isValidPage(int vpn) {
+		if (vpn < 0 || vpn >= numPages)
+			return false;
+
+		return vpn < programPages || pageMappings[vpn] != null;
+	}
+
+	/**
+	 * Return <tt>true</tt> if the specified page belongs to a read-only COFF
+	 * section.
+	 */
+	private boolean isReadOnly(int vpn) {
+		return pageSections[vpn] != null && pageSections[vpn].isReadOnly();
+	}
+
+	/**
+	 * Return <tt>true</tt> if the specified page is mapped from the shared
+	 * image: it belongs to an initialized COFF section, and this process has
+	 * not made its own copy.
+	 */
+	private boolean isShared(int vpn) {
+		return image != null && pageSections[vpn] != null
+				&& pageSections[vpn].isInitialzed() && !copied[vpn];
+	}
+
+	/**
+	 * Return <tt>true</tt> if the specified page is shared, but this process
+	 * may write to it.
+	 */
+	private boolean isCopyOnWrite(int vpn) {
+		return isShared(vpn) && !isReadOnly(vpn);
+	}
+
+	/**
+	 * Return the page table entry of the specified virtual page.
+	 * 
+	 * @param vpn the virtual page.
+	 * @return the page table entry of the page.
+	 */
+	TranslationEntry getEntry(int vpn) {
+		return pageTable[vpn];
+	}
+
+	/**
+	 * Move the used and dirty bits of every TLB entry into the page table, so
+	 * that the page table can be inspected and its used bits cleared. Called
+	 * with <tt>VMKernel.memoryLock</tt> held.
+	 */
+	void syncTLB() {
+		Processor processor = Machine.processor();
+		if (!processor.hasTLB())
+			return;
+
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+			TranslationEntry entry = processor.readTLBEntry(i);
+			if (entry.valid && (entry.used || entry.dirty)) {
+				syncTLBEntry(entry);
+
+				entry.used = false;
+				entry.dirty = false;
+				processor.writeTLBEntry(i, entry);
+			}
+		}
+	}
+
+	/**
+	 * Copy the used and dirty bits of a TLB entry into the page table.
+	 */
+	private void syncTLBEntry(TranslationEntry tlbEntry) {
+		TranslationEntry entry = pageTable[tlbEntry.vpn];
+
+		entry.used |= tlbEntry.used;
+		entry.dirty |= tlbEntry.dirty;
+	}
+
+	/**
+	 * A file mapped into the address space by mmap(). Page <i>i</i> of the
+	 * mapping starts at byte <tt>i * pageSize</tt> of the file; the part of
+	 * the last page past the end of the file reads as zeroes and is never
+	 * written back.
+	 */
+	private static class Mapping {
+		Mapping(int fd, OpenFile file, int firstVPN, int numPages, int length) {
+			this.fd = fd;
+			this.file = file;
+			this.firstVPN = firstVPN;
+			this.numPages = numPages;
+			this.length = length;
+		}
+
+		/**
+		 * Read consecutive pages of the file, starting with virtual page
+		 * <tt>vpn</tt>, into the specified physical pages, in a single read.
+		 */
+		void loadPages(int vpn, int[] ppns) {
+			byte[] memory = Machine.processor().getMemory();
+			byte[] buf = new byte[ppns.length * pageSize];
+
+			// anything the file no longer holds reads as zeroes
+			file.read((vpn - firstVPN) * pageSize, buf, 0, buf.length);
+
+			for (int i = 0; i < ppns.length; i++)
+				System.arraycopy(buf, i * pageSize, memory, ppns[i] * pageSize,
+						pageSize);
+		}
+
+		/**
+		 * Write the part of virtual page <tt>vpn</tt> that lies within the
+		 * file back to the file from the specified physical page.
+		 */
+		void writePage(int vpn, int ppn) {
+			int offset = (vpn - firstVPN) * pageSize;
+			int amount = Math.min(pageSize, length - offset);
+
+			if (file.write(offset, Machine.processor().getMemory(), ppn
+					* pageSize, amount) != amount)
+				Lib.debug(dbgVM, "\tlost write back of vpn " + vpn);
+		}
+
+		final int fd;
+
+		final OpenFile file;
+
+		final int firstVPN, numPages;
+
+		/** The length of the file when it was mapped. */
+		final int length;
+	}
+
+	/** The COFF section holding each virtual page, or <tt>null</tt>. */
+	private CoffSection[] pageSections;
+
+	/** The page within <tt>pageSections[vpn]</tt> of each virtual page. */
+	private int[] sectionPages;
+
+	/** The swap slot holding each virtual page, or -1. */
+	private int[] swapSlots;
+
+	/** <tt>true</tt> for each copy-on-write page this process has copied. */
+	private boolean[] copied;
+
+	/** The mapping holding each virtual page, or <tt>null</tt>. */
+	private Mapping[] pageMappings;
+
+	private LinkedList<Mapping> mappings = new LinkedList<Mapping>();
+
+	/** The number of pages of the program, before any mapping. */
+	private int programPages;
+
+	/** The name of the executable, if known. */
+	private String executableName = null;
+
+	/** The pages shared with other processes running the executable. */
+	private SharedImage image = null;
+
+	/** The number of pages to read ahead of a sequential fault. */
+	private int prefetchPages;
+
+	/** The page just past the last ones brought in by a fault. */
+	private int nextSequentialVPN = -1;
+
+	/** Used to choose which TLB entry to replace when a set is full. */
+	private int nextTLBVictim = 0;
+
+	private static final TranslationEntry invalidEntry = new TranslationEntry();
+
 	private static final int pageSize = Processor.pageSize;
 
+	/** The mappings may not extend the address space past this many pages. */
+	private static final int maxVirtualPages = 0x10000;
+
+	private static final int syscallRead = 6, syscallWrite = 7,
+			syscallMmap = 10, syscallReadv = 13, syscallWritev = 14,
+			syscallMunmap = 15;
+
 	private static final char dbgProcess = 'a';
 
 	private static final char dbgVM = 'v';
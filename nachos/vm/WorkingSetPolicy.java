@@ -0,0 +1,81 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A working-set policy in the style of WSClock. Every timer interrupt, and
+ * whenever the clock hand passes, a page whose used bit is set is stamped with
+ * the current time. A page that has not been used for longer than the window
+ * has left the working set, and can be evicted, preferring clean pages. If
+ * every page is in the working set, the least recently used one is evicted.
+ * 
+ * <p>
+ * The window, in ticks, is read from <tt>WorkingSetPolicy.window</tt>.
+ */
+public class WorkingSetPolicy implements PageReplacementPolicy {
+	/**
+	 * Allocate a new working-set policy.
+	 */
+	public WorkingSetPolicy() {
+		lastUsed = new long[Machine.processor().getNumPhysPages()];
+		window = Config.getInteger("WorkingSetPolicy.window", 20000);
+	}
+
+	public void frameAllocated(int ppn) {
+		lastUsed[ppn] = Machine.timer().getTime();
+	}
+
+	public void frameFreed(int ppn) {
+	}
+
+	public int chooseVictim() {
+		long time = Machine.timer().getTime();
+		int oldDirty = -1, leastRecent = -1;
+
+		for (int i = 0; i < lastUsed.length; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % lastUsed.length;
+
+			if (VMKernel.isPinned(ppn))
+				continue;
+
+			TranslationEntry entry = VMKernel.getEntry(ppn);
+			if (entry.used) {
+				entry.used = false;
+				lastUsed[ppn] = time;
+			}
+			else if (time - lastUsed[ppn] > window) {
+				if (!entry.dirty)
+					return ppn;
+				if (oldDirty == -1)
+					oldDirty = ppn;
+			}
+
+			if (leastRecent == -1 || lastUsed[ppn] < lastUsed[leastRecent])
+				leastRecent = ppn;
+		}
+
+		return oldDirty != -1 ? oldDirty : leastRecent;
+	}
+
+	public void timerInterrupt() {
+		VMKernel.syncTLB();
+
+		long time = Machine.timer().getTime();
+		for (int ppn = 0; ppn < lastUsed.length; ppn++) {
+			TranslationEntry entry = VMKernel.getEntry(ppn);
+			if (entry != null && entry.used) {
+				entry.used = false;
+				lastUsed[ppn] = time;
+			}
+		}
+	}
+
+	/** The last time each physical page was seen to be used. */
+	private long[] lastUsed;
+
+	private long window;
+
+	/** The next physical page to consider. */
+	private int hand = 0;
+}